@@ -196,6 +196,21 @@ local function processCommands(commands)
           table.insert(map.playerInventory, item)
         end
       
+      elseif cmd == "UPDI" then
+        -- the server refused an item move, put the item back
+        local itemId = tonumber(args())
+        local where = tonumber(args())
+        local x = tonumber(args())
+        local y = tonumber(args())
+        
+        for k, item in pairs(map.playerInventory) do
+          if item.itemId == itemId then
+            item.where = where
+            item.x = x
+            item.y = y
+          end
+        end
+      
       elseif cmd == "ADDM" then
         local id = tonumber(args())
         local name = args()
@@ -1,7 +1,10 @@
 package tinyplaces.server;
 
+import tinyplaces.server.data.Catalogs;
+import tinyplaces.server.data.Rgba;
 import tinyplaces.server.isomap.Client;
 import tinyplaces.server.isomap.Mob;
+import tinyplaces.server.isomap.Room;
 
 /**
  *
@@ -9,36 +12,69 @@ import tinyplaces.server.isomap.Mob;
  */
 public class ChatCommandWorker 
 {
+    // reloading the catalogs is for servers which are used to edit the
+    // game data, players on other servers must not trigger it
+    private static final boolean RELOAD_ALLOWED = Boolean.getBoolean("tinyplaces.allowReload");
 
-    void processChatCommand(CommandWorker commandWorker, Client client, String chat) 
+    /**
+     * @param room The room the command was sent in
+     */
+    void processChatCommand(CommandWorker commandWorker, Client client, Room room, String chat) 
     {
         if(chat.startsWith("/color"))
         {
-            changePlayerColor(commandWorker, client, chat);
+            changePlayerColor(commandWorker, client, room, chat);
         }
+        else if(chat.startsWith("/aistats"))
+        {
+            showAiStats(commandWorker, client, room);
+        }
+        else if(chat.startsWith("/reload"))
+        {
+            reloadCatalogs(commandWorker, client, room);
+        }
+    }
+
+    private void reloadCatalogs(CommandWorker commandWorker, Client client, Room room) 
+    {
+        if(!RELOAD_ALLOWED)
+        {
+            String chat = "CHAT,System,1 0.5 0 1,Reloading game data is disabled on this server.\n";
+            commandWorker.singlecast(room.getServer(), client.socket, chat);
+            return;
+        }
+        
+        // the catalogs are built in a background thread, the game goes on meanwhile
+        boolean started = Catalogs.reload(getClass());
+        String chat = "CHAT,System,1 1 1 1," + (started ? "Reloading game data." : "Game data is already being reloaded.") + "\n";
+        commandWorker.singlecast(room.getServer(), client.socket, chat);
     }
 
-    private void changePlayerColor(CommandWorker commandWorker, Client client, String chat) 
+    private void showAiStats(CommandWorker commandWorker, Client client, Room room) 
+    {
+        String chat = "CHAT,System,1 1 1 1,AI evaluations in " + room.name + ": " + room.getAiStats() + "\n";
+        commandWorker.singlecast(room.getServer(), client.socket, chat);
+    }
+
+    private void changePlayerColor(CommandWorker commandWorker, Client client, Room room, String chat) 
     {
         Mob mob = client.mob;
         if(mob != null)
         {
-            String color = chat.substring(chat.indexOf(" ")).trim();
-            String [] parts = color.split(" ");
-            if(parts.length < 3)
+            Rgba color;
+            try
             {
-                chat = "CHAT,System,1 0.5 0 1,Colors need three components at least, but only " 
-                        + parts.length + " were given.";
-                commandWorker.singlecast(client.getCurrentRoom().getServer(), client.socket, chat);
-                return;
+                // a missing alpha value defaults to 1
+                color = Rgba.parse(chat.substring(chat.indexOf(" ")));
             }
-            else if(parts.length == 3)
+            catch(IllegalArgumentException ex)
             {
-                // add default alpha value if it was omitted
-                color += " 1";
+                chat = "CHAT,System,1 0.5 0 1," + ex.getMessage();
+                commandWorker.singlecast(room.getServer(), client.socket, chat);
+                return;
             }
             commandWorker
-                    .updateMob(client, mob.id, mob.tile, mob.x, mob.y, mob.scale, color);
+                    .updateMob(room, mob.id, mob.tile, mob.x, mob.y, mob.scale, color);
         }
     }    
 }
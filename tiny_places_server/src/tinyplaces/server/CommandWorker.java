@@ -1,6 +1,7 @@
 package tinyplaces.server;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -12,15 +13,20 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tinyplaces.server.data.AnimationType;
+import tinyplaces.server.data.FastRandom;
 import tinyplaces.server.data.Item;
+import tinyplaces.server.data.Rgba;
 import tinyplaces.server.data.ItemBuilder;
 import tinyplaces.server.data.Spell;
-import tinyplaces.server.data.SpellCatalog;
 import tinyplaces.server.isomap.Client;
+import tinyplaces.server.isomap.MapTemplate;
+import tinyplaces.server.isomap.IntMap;
 import tinyplaces.server.isomap.Mob;
+import tinyplaces.server.isomap.MobLayer;
 import tinyplaces.server.isomap.Room;
 import tinyplaces.server.isomap.actions.Action;
 import tinyplaces.server.isomap.actions.Move;
@@ -37,8 +43,8 @@ public class CommandWorker implements ServerWorker
     // network data queue
     private final List <ServerDataEvent> queue = new ArrayList();
 
-    // client map
-    private final Map <SocketChannel, Client> clients = new HashMap();
+    // client map, also used by the map worker thread
+    private final Map <SocketChannel, Client> clients = new ConcurrentHashMap<SocketChannel, Client>();
     
     private final ChatCommandWorker chatCommandWorker = new ChatCommandWorker();
     
@@ -118,13 +124,50 @@ public class CommandWorker implements ServerWorker
         {
             loginClient(dataEvent, command);
         }
-        else if(command.startsWith("ADDM"))
+        else if(command.startsWith("GBYE"))
         {
-            addMob(dataEvent, command);
+            logoutClient(dataEvent, command);
+        }
+        else if(command.startsWith("LOAD"))
+        {
+            loadMap(dataEvent.server, clients.get(dataEvent.socket), command);
+        }
+        else if(command.startsWith("REGI"))
+        {
+            registerAccount(dataEvent, command);
+        }
+        else
+        {
+            // all other commands work on the room of the client and
+            // must be run by the thread which owns the room
+            Client client = clients.get(dataEvent.socket);
+            Room room = (client == null) ? null : client.getCurrentRoom();
+            
+            if(room != null)
+            {
+                room.execute(new RoomCommand(dataEvent, command, room));
+            }
+            else
+            {
+                processRoomCommand(dataEvent, command, null);
+            }
+        }
+    }
+    
+    
+    /**
+     * @param room The room of the client when the command arrived, null if
+     * the client is in no room
+     */
+    private void processRoomCommand(ServerDataEvent dataEvent, String command, Room room)
+    {
+        if(command.startsWith("ADDM"))
+        {
+            addMob(dataEvent, command, room);
         }
         else if(command.startsWith("GAME"))
         {
-            startGame(dataEvent, command);
+            startGame(dataEvent, command, room);
         }
         else if(command.startsWith("UPDI"))
         {
@@ -132,49 +175,73 @@ public class CommandWorker implements ServerWorker
         }
         else if(command.startsWith("UPDM"))
         {
-            updateMob(dataEvent, command);
+            updateMob(dataEvent, command, room);
         }
         else if(command.startsWith("DELM"))
         {
-            deleteMob(dataEvent, command);
+            deleteMob(dataEvent, command, room);
         }
         else if(command.startsWith("FIRE"))
         {
-            fireProjectile(dataEvent, command);
+            fireProjectile(dataEvent, command, room);
         }
-        /*
-        else if(command.startsWith("GAME"))
+        else if(command.startsWith("SAVE"))
         {
-            startGame(dataEvent, command);
+            saveMap(dataEvent, command, room);
         }
-        */
-        else if(command.startsWith("GBYE"))
+        else if(command.startsWith("CHAT"))
         {
-            logoutClient(dataEvent, command);
+            handleChat(dataEvent, command, room);
         }
-        else if(command.startsWith("SAVE"))
+        else if(command.startsWith("MOVE"))
         {
-            saveMap(dataEvent, command);
+            doMove(dataEvent, command, room);
         }
-        else if(command.startsWith("LOAD"))
+        else if(command.startsWith("SYNC"))
         {
-            loadMap(dataEvent.server, clients.get(dataEvent.socket), command);
+            startDeltaSync(dataEvent, command, room);
         }
-        else if(command.startsWith("CHAT"))
+        else if(command.startsWith("ACKV"))
         {
-            handleChat(dataEvent, command);
+            acknowledgeVersion(dataEvent, command);
         }
-        else if(command.startsWith("MOVE"))
+        else
         {
-            doMove(dataEvent, command);
+            Logger.getLogger(CommandWorker.class.getName()).log(Level.WARNING, "Received unknown command: '{0}'", command);
         }
-        else if(command.startsWith("REGI"))
+    }
+    
+    
+    /**
+     * A client command which is run by the owner thread of the room. The
+     * command is dropped if the client left the room meanwhile, its ids
+     * refer to the mobs of this room.
+     */
+    private class RoomCommand implements Runnable
+    {
+        private final ServerDataEvent dataEvent;
+        private final String command;
+        private final Room room;
+        
+        RoomCommand(ServerDataEvent dataEvent, String command, Room room)
         {
-            registerAccount(dataEvent, command);
+            this.dataEvent = dataEvent;
+            this.command = command;
+            this.room = room;
         }
-        else
+        
+        @Override
+        public void run()
         {
-            Logger.getLogger(CommandWorker.class.getName()).log(Level.WARNING, "Received unknown command: '{0}'", command);
+            Client client = clients.get(dataEvent.socket);
+            
+            if(client == null || client.getCurrentRoom() != room)
+            {
+                Logger.getLogger(CommandWorker.class.getName()).log(Level.INFO, "Dropped command for room {0}: {1}", new Object [] {room.name, command});
+                return;
+            }
+            
+            processRoomCommand(dataEvent, command, room);
         }
     }
     
@@ -238,22 +305,30 @@ public class CommandWorker implements ServerWorker
     {
         System.err.println("GBYE from " + dataEvent.socket);
         
-        Client client = clients.get(dataEvent.socket);
-        if(client != null)
+        final Client client = clients.get(dataEvent.socket);
+
+        // if the client didn't start a game, there is no mob assigned
+        if(client != null && client.mob != null)
         {
-            Room room = client.getCurrentRoom();
-            Object test;
+            final Room room = client.getCurrentRoom();
 
-            // if the client didn't start a game, there is no mob assigned
-            if(client.mob != null)
+            room.execute(new Runnable() 
             {
-                test = room.removeMob(3, client.mob.id);
-                if(test == null)
+                @Override
+                public void run() 
                 {
-                    Logger.getLogger(CommandWorker.class.getName()).log(Level.WARNING, 
-                            "Logout problem: client avatar was not in room.");
+                    Object test = room.getMob(3, client.mob.id);
+                    if(test == null)
+                    {
+                        Logger.getLogger(CommandWorker.class.getName()).log(Level.WARNING, 
+                                "Logout problem: client avatar was not in room.");
+                    }
+
+                    // tell the others that the avatar left
+                    client.clearKnownMobs();
+                    removeMob(client.mob.id, room, 3);
                 }
-            }
+            });
         }
         
         Client test = clients.remove(dataEvent.socket);
@@ -321,30 +396,36 @@ public class CommandWorker implements ServerWorker
     }
     
     
-    private void addMob(ServerDataEvent dataEvent, String command)
+    private void addMob(ServerDataEvent dataEvent, String command, Room room)
     {
         System.err.println("ADDM from " + dataEvent.socket);
         
         Client client = clients.get(dataEvent.socket);
-        Room room = client.getCurrentRoom();
         String [] parts = command.trim().split(",");
 
         int layer = Integer.parseInt(parts[1]);
         Mob mob = room.makeMob(parts);
+        room.journalAdd(layer, mob);
         String cmd = makeAddMobCommand(mob, layer, "n");
         
-        roomcast(dataEvent.server, cmd, room);
+        if(layer == 3)
+        {
+            addMobcast(dataEvent.server, cmd, room, mob);
+        }
+        else
+        {
+            statecast(dataEvent.server, cmd, room);
+        }
     }
 
     
-    private void startGame(ServerDataEvent dataEvent, String command)
+    private void startGame(ServerDataEvent dataEvent, String command, Room room)
     {
         System.err.println("GAME from " + dataEvent.socket);
         
         Client client = clients.get(dataEvent.socket);
-        Room room = client.getCurrentRoom();
         
-        Mob mob = room.makeMob(3, 39, 16, 1, 600, 400, 0.5f, "1.0 1.0 1.0 1.0", Mob.TYPE_PLAYER);
+        Mob mob = room.makeMob(3, 39, 16, 1, 600, 400, 0.5f, Rgba.WHITE, Mob.TYPE_PLAYER);
         
         // set new player avatar
         client.mob = mob;
@@ -352,37 +433,40 @@ public class CommandWorker implements ServerWorker
         addPlayerToRoom(client, mob, room);
         
         // give the player their items.
-        equipPlayer(client);
+        equipPlayer(client, room);
     }
     
     
-    private void equipPlayer(Client client)
+    private void equipPlayer(Client client, Room room)
     {
         // todo - player database
         
         // for the moment, just hand some default items to the client
         // so there is something for testing item related code
         
-        Item item1 = ItemBuilder.create("small_blaster");
+        // runs as a room command, so the room's generator can be used
+        FastRandom random = room.getRandom();
+        
+        Item item1 = ItemBuilder.create("small_blaster", random);
         item1.where = Item.IN_FIRST_SLOT + 1;
         
         addItem(client, item1);
         
-        Item item2 = ItemBuilder.create("blaster");
+        Item item2 = ItemBuilder.create("blaster", random);
         item2.where = Item.IN_INVENTORY;
         if(client.findSuitableLocation(item2) != null)
         {
             addItem(client, item2);
         }    
             
-        Item item3 = ItemBuilder.create("firebolt_core");
+        Item item3 = ItemBuilder.create("firebolt_core", random);
         item3.where = Item.IN_INVENTORY;
         if(client.findSuitableLocation(item3) != null)
         {
             addItem(client, item3);
         }    
         
-        Item item4 = ItemBuilder.create("frostbolt_core");
+        Item item4 = ItemBuilder.create("frostbolt_core", random);
         item4.where = Item.IN_INVENTORY;
         if(client.findSuitableLocation(item4) != null)
         {
@@ -403,16 +487,33 @@ public class CommandWorker implements ServerWorker
         int x = Integer.parseInt(parts[3]);
         int y = Integer.parseInt(parts[4]);
         
-        client.updateItem(id, where, x, y);
+        Item obstruction = client.updateItem(id, where, x, y);
+        if(obstruction != null)
+        {
+            Item item = client.getItem(id);
+            if(obstruction != item)
+            {
+                Logger.getLogger(CommandWorker.class.getName()).log(Level.WARNING, "updateItem not possible, slot blocked by {0}", obstruction.displayName);
+            }
+            
+            // the client moved the item already, tell it where the item stays
+            String correction = 
+                    "UPDI," +
+                    item.id + "," +
+                    item.where + "," +
+                    item.position.x + "," +
+                    item.position.y + "\n";
+            
+            singlecast(dataEvent.server, client.socket, correction);
+        }
     }
     
     
-    private void updateMob(ServerDataEvent dataEvent, String command)
+    private void updateMob(ServerDataEvent dataEvent, String command, Room room)
     {
         System.err.println("UPDM from " + dataEvent.socket);
         
         Client client = clients.get(dataEvent.socket);
-        Room room = client.getCurrentRoom();
         
         String [] parts = command.split(",");
         int id = Integer.parseInt(parts[1]);
@@ -422,13 +523,24 @@ public class CommandWorker implements ServerWorker
 
         if(mob != null)
         {
+            String before = Room.describeProp(mob);
+            
             mob.tile = Integer.parseInt(parts[3]);
             mob.x = Integer.parseInt(parts[4]);
             mob.y = Integer.parseInt(parts[5]);
             mob.scale = Float.parseFloat(parts[6]);
-            mob.color = parts[7].trim();
+            mob.color = Rgba.parse(parts[7]);
+            room.markChanged(layer, mob);
+            room.journalUpdate(layer, before, mob);
 
-            roomcast(dataEvent.server, command, room);
+            if(layer == 3)
+            {
+                mobcast(dataEvent.server, command, room, mob, layer, mob.x, mob.y, true);
+            }
+            else
+            {
+                statecast(dataEvent.server, command, room);
+            }
         }
         else
         {
@@ -437,10 +549,8 @@ public class CommandWorker implements ServerWorker
     }
 
     
-    public void updateMob(Client client, int id, int tile, int x, int y, float scale, String color)
+    public void updateMob(Room room, int id, int tile, int x, int y, float scale, Rgba color)
     {
-        Room room = client.getCurrentRoom();
-        
         int layer = 3;
 		
         Mob mob = room.getMob(layer, id);
@@ -452,6 +562,7 @@ public class CommandWorker implements ServerWorker
             mob.y = y;
             mob.scale = scale;
             mob.color = color;
+            room.markChanged(layer, mob);
             
             String command = 
                     "UPDM," + id + "," +
@@ -462,7 +573,7 @@ public class CommandWorker implements ServerWorker
                     scale + "," +
                     color + "\n";
             
-            roomcast(room.getServer(), command, room);
+            mobcast(room.getServer(), command, room, mob, layer, x, y, true);
         }
         else
         {
@@ -471,31 +582,33 @@ public class CommandWorker implements ServerWorker
     }
 
     
-    public void deleteMob(ServerDataEvent dataEvent, String command)
+    public void deleteMob(ServerDataEvent dataEvent, String command, Room room)
     {
         System.err.println("DELM from " + dataEvent.socket);
         
         Client client = clients.get(dataEvent.socket);
-        Room room = client.getCurrentRoom();
         
         String [] parts = command.split(",");
         int id = Integer.parseInt(parts[1].trim());
         int layer = Integer.parseInt(parts[2].trim());
 		
-        room.removeMob(layer, id);
+        Mob mob = room.getMob(layer, id);
+        if(mob != null)
+        {
+            room.journalDelete(layer, mob);
+        }
         
-        roomcast(dataEvent.server, command, room);
+        removeMob(id, room, layer);
     }
 	
 
-    private void saveMap(ServerDataEvent dataEvent, String command) 
+    private void saveMap(ServerDataEvent dataEvent, String command, Room room) 
     {
         Client client = clients.get(dataEvent.socket);
-        Room room = client.getCurrentRoom();
         
         String [] parts = command.split(",");
         String filename = parts[1].trim() + ".txt";
-        room.save(filename);        
+        room.save(filename, client);
     }
 
     
@@ -508,7 +621,7 @@ public class CommandWorker implements ServerWorker
      * @param command The load command that was sent by the client.
      * @return True if a new room instance was created, false if an old instance was used
      */
-    private boolean loadMap(Server server, Client client, String command) 
+    private boolean loadMap(Server server, final Client client, String command) 
     {
         System.err.println("LOAD from " + client.socket);
         
@@ -517,49 +630,90 @@ public class CommandWorker implements ServerWorker
 
         // check if the room is already loaded
         HashMap<String, Room> rooms = Room.getRooms();
-        Room room = rooms.get(filename);
+        Room room;
         boolean newInstance;
         
-        if(room == null)
+        synchronized(rooms)
         {
-            System.err.println("Player " + client.displayName + " creates a new room instance.");
-            
-            // room not loaded yet -> load it
-            newInstance = true;
-            room = loadRoom(filename);
+            room = rooms.get(filename);
 
-            room.setCommandWorker(this);
-            room.setServer(server);
-            rooms.put(filename, room);
-        }
-        else
-        {
-            System.err.println("Player " + client.displayName + " joins existing room.");
-            
-            // room is already loaded -> join it
-            newInstance = false;
+            if(room == null)
+            {
+                System.err.println("Player " + client.displayName + " creates a new room instance.");
+
+                // room not loaded yet -> load it
+                newInstance = true;
+                room = loadRoom(filename);
+
+                room.setCommandWorker(this);
+                room.setServer(server);
+                Room.addRoom(filename, room);
+            }
+            else
+            {
+                System.err.println("Player " + client.displayName + " joins existing room.");
+
+                // room is already loaded -> join it
+                newInstance = false;
+            }
         }
         
         singlecast(room.getServer(), client.socket, "LOAD," + room.name + "," + room.backdrop + "," + filename + "\n");
         
         client.setCurrentRoom(room);
-        serveRoom(room, client.socket);
+        
+        final Room newRoom = room;
+        room.execute(new Runnable() 
+        {
+            @Override
+            public void run() 
+            {
+                client.clearKnownMobs();
+                client.syncEpoch ++;
+                client.ackedVersion = 0;
+                client.deltaRoom = newRoom;
+
+                // delta clients get the room content with the next delta
+                if(!client.deltaSync)
+                {
+                    serveRoom(newRoom, client);
+                }
+            }
+        });
+        
         return newInstance;
     }
 
     
-    private void serveRoom(Room room, SocketChannel socket)
+    private void serveRoom(Room room, Client client)
     {
         for(int layer = 1; layer < 6; layer += 2)
         {
-            HashMap <Integer, Mob> map = room.getLayerMap(layer);
-            Collection <Mob> mobs = map.values();
+            MobLayer map = room.getLayerMap(layer);
             
-            for(Mob mob : mobs)
+            for(int i=0; i<map.capacity(); i++)
             {
+                Mob mob = map.valueAt(i);
+                if(mob == null)
+                {
+                    continue;
+                }
+                
+                room.locate(mob);
+                
+                // mobs out of view will be sent once they come close
+                if(layer == 3)
+                {
+                    if(mob.type == Mob.TYPE_PROJECTILE || !client.canSee(mob.x, mob.y))
+                    {
+                        continue;
+                    }
+                    client.addKnownMob(mob.id);
+                }
+                
                 String command = makeAddMobCommand(mob, layer, "n");
 
-                singlecast(room.getServer(), socket, command);
+                singlecast(room.getServer(), client.socket, command);
             }
         }
     }
@@ -567,47 +721,12 @@ public class CommandWorker implements ServerWorker
     
     private Room loadRoom(String filename)
     {
-        String mapname = filename + ".txt";        
-        File file = new File("maps", mapname);
-
         Room result = null;
         
         try 
         {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-
-            String version = reader.readLine();
-            String roomname = reader.readLine();
-            String backdrop = reader.readLine();
-
-            result = new Room(roomname, backdrop);
-            
-            String line;
-            while((line = reader.readLine()) != null)
-            {
-                System.err.println(line);
-                String [] parts = line.split(",");
-                
-                int layer, tile, frames, phases, x, y;
-                float scale;
-                String color;
-                
-                // if("v10".equals(version))
-                // {
-                    layer = Integer.parseInt(parts[0]);
-                    tile = Integer.parseInt(parts[1]);
-                    frames = 1;
-                    phases = 2;
-                    x = Integer.parseInt(parts[2]);
-                    y = Integer.parseInt(parts[3]);
-                    scale = Float.parseFloat(parts[4]);
-                    color = parts[5].trim();
-                // }
-                
-                result.makeMob(layer, tile, frames, phases, x, y, scale, color, Mob.TYPE_PROP);
-            }
-            
-            reader.close();
+            // parsed maps are cached, a second instance is made from memory
+            result = MapTemplate.get(filename).createRoom();
         }
         catch (IOException ex) 
         {
@@ -618,7 +737,7 @@ public class CommandWorker implements ServerWorker
     }
 
     
-    private void handleChat(ServerDataEvent dataEvent, String command)
+    private void handleChat(ServerDataEvent dataEvent, String command, Room room)
     {
         Client client = clients.get(dataEvent.socket);
         System.err.println("CHAT from " + dataEvent.socket);
@@ -626,11 +745,11 @@ public class CommandWorker implements ServerWorker
         
         if(chat.startsWith("/"))
         {
-            chatCommandWorker.processChatCommand(this, client, chat);
+            chatCommandWorker.processChatCommand(this, client, room, chat);
         }
         else
         {
-            String color = "1 1 1 1";
+            Rgba color = Rgba.WHITE;
             if(client.mob != null)
             {
                 color = client.mob.color;
@@ -643,7 +762,6 @@ public class CommandWorker implements ServerWorker
             buf.append(',');
             buf.append(chat);
 
-            Room room = client.getCurrentRoom();
             roomcast(dataEvent.server, buf.toString(), room);
         }
     }
@@ -694,7 +812,46 @@ public class CommandWorker implements ServerWorker
     }
 
     
-    private void doMove(ServerDataEvent dataEvent, String command) 
+    /**
+     * Switch a client to delta synchronisation. It will get its current
+     * room with the next delta.
+     */
+    private void startDeltaSync(ServerDataEvent dataEvent, String command, Room room) 
+    {
+        Client client = clients.get(dataEvent.socket);
+        
+        if(client != null)
+        {
+            client.deltaSync = true;
+            client.syncEpoch ++;
+            client.ackedVersion = 0;
+            client.deltaRoom = room;
+            client.clearKnownMobs();
+        }
+    }
+    
+    
+    /**
+     * ACKV,epoch,version - the client has applied the deltas up to this
+     * version. Versions count per room, so acknowledgements which were
+     * sent for the room the client was in before (an older epoch) are 
+     * ignored.
+     */
+    private void acknowledgeVersion(ServerDataEvent dataEvent, String command) 
+    {
+        Client client = clients.get(dataEvent.socket);
+        String [] parts = command.trim().split(",");
+        int epoch = Integer.parseInt(parts[1]);
+        int version = Integer.parseInt(parts[2]);
+        
+        if(client != null && epoch == client.syncEpoch && version > client.ackedVersion)
+        {
+            client.ackedVersion = version;
+        }
+    }
+    
+    
+    private void doMove(ServerDataEvent dataEvent, String command, Room room) 
     {
         System.err.println("MOVE from " + dataEvent.socket + "\n  " + command);
 
@@ -707,7 +864,6 @@ public class CommandWorker implements ServerWorker
         int speed = 120;
         
         Client client = clients.get(dataEvent.socket);
-        Room room = client.getCurrentRoom();
         Mob mob = room.getMob(layer, id);
         
         String pattern = "bounce";
@@ -740,43 +896,33 @@ public class CommandWorker implements ServerWorker
         }
         
         Mob mob = room.getMob(layer, id);
-        Move move = new Move(client, mob, layer, dx, dy, speed);
-        
-        // check and cancel former move ...
-        List <Action> actions = room.getActions();
-        ArrayList<Action> actionsCopy = new ArrayList<Action>(actions);
         
-        for(Action action : actionsCopy)
-        {
-            if(action instanceof Move)
-            {
-                Move m = (Move)action;
-                if(m.getMob().id == mob.id)
-                {
-                    System.err.println("Removing old move for mob id=" + mob.id);
-                    
-                    synchronized(actions)
-                    {
-                        actions.remove(m);
-                    }
-                }
-            }
-        }
+        // A former move of this mob will be cancelled when the new 
+        // move takes over the mob in the rooms motion table
+        Move move = room.getActionPool().obtainMove(client, mob, layer, dx, dy, speed, pattern);
         
-        String command =
-                "MOVE," +
-                id + "," +
-                layer + "," +
-                dx + "," +
-                dy + "," +
-                speed + "," + 
-                pattern + "\n";
+        String command = makeMoveCommand(move);
 
         room.addAction(move);
-        roomcast(room.getServer(), command, room);
+        mobcast(room.getServer(), command, room, mob, layer, dx, dy, true);
     }
 
     
+    private String makeMoveCommand(Move move)
+    {
+        String command =
+                "MOVE," +
+                move.mob.id + "," +
+                move.layer + "," +
+                move.x + "," +
+                move.y + "," +
+                move.speed + "," + 
+                move.pattern + "\n";
+        
+        return command;
+    }
+    
+    
     public void transit(Client client, Mob mob, Room from, String roomname, int newx, int newy) 
     {
         // leave the old room first
@@ -814,7 +960,26 @@ public class CommandWorker implements ServerWorker
         
         room.removeMob(layer, id);
 
-        roomcast(room.getServer(), command, room);
+        if(layer == 3)
+        {
+            // only clients which know the mob need to be told
+            Server server = room.getServer();
+            byte [] data = command.getBytes();
+
+            for(Client client : clients.values())
+            {
+                // delta clients learn about it from the next delta
+                if(client.getCurrentRoom() == room && !client.deltaSync && 
+                   client.removeKnownMob(id))
+                {
+                    server.send(client.socket, data);
+                }
+            }
+        }
+        else
+        {
+            statecast(room.getServer(), command, room);
+        }
     }
     
 
@@ -836,7 +1001,7 @@ public class CommandWorker implements ServerWorker
                 y + "," +
                 "\n";
 
-        roomcast(room.getServer(), command, room);
+        viewcast(room.getServer(), command, room, x, y);
     }
     
     
@@ -868,7 +1033,7 @@ public class CommandWorker implements ServerWorker
     }
     */
     
-    private void fireProjectile(ServerDataEvent dataEvent, String command) 
+    private void fireProjectile(ServerDataEvent dataEvent, String command, Room room) 
     {
         System.err.println("FIRE from " + dataEvent.socket);
 
@@ -880,9 +1045,8 @@ public class CommandWorker implements ServerWorker
         int dy = Integer.parseInt(parts[4]);
         
         Client client = clients.get(dataEvent.socket);
-        Room room = client.getCurrentRoom();
         
-        Spell spell = SpellCatalog.get(ptype);
+        Spell spell = client.getSpell(ptype);
         
         fireProjectile(room, client.mob, layer, dx, dy, spell);
     }
@@ -890,12 +1054,13 @@ public class CommandWorker implements ServerWorker
     
     public void fireProjectile(Room room, Mob shooter, int layer, int dx, int dy, Spell spell)
     {
+        room.locate(shooter);
         int sx = shooter.x;
         int sy = shooter.y;
 
-        Mob projectile = room.makeMob(layer, 1, 16, 1, sx, sy, 1.0f, "1 1 1 1", Mob.TYPE_PROJECTILE);
+        Mob projectile = room.makeMob(layer, 1, 16, 1, sx, sy, 1.0f, Rgba.WHITE, Mob.TYPE_PROJECTILE);
         
-        SpellCast spellCast = new SpellCast(shooter, spell, projectile, layer, dx, dy);
+        SpellCast spellCast = room.getActionPool().obtainSpellCast(shooter, spell, projectile, layer, dx, dy);
         room.addAction(spellCast);
         
         String command = 
@@ -909,7 +1074,7 @@ public class CommandWorker implements ServerWorker
                 dy + "," +
                 spell.speed + "\n";
 
-        roomcast(room.getServer(), command, room);
+        mobcast(room.getServer(), command, room, shooter, layer, dx, dy, false);
     }
 
     
@@ -958,7 +1123,7 @@ public class CommandWorker implements ServerWorker
 
             if(item.where == Item.ON_MAP)
             {
-                roomcast(room.getServer(), command, room);
+                addItemcast(room.getServer(), command, room, item);
             }
             else
             {
@@ -975,10 +1140,53 @@ public class CommandWorker implements ServerWorker
     }
     
     
-    public void dropItem(Room room, Item item)
+    /**
+     * Announce new items on the map. Each client gets a single message
+     * with all the items it can see.
+     */
+    public void dropItems(Room room, List <Item> items)
     {      
-        assert(item.where == Item.ON_MAP);
+        Server server = room.getServer();
+        byte [][] commands = new byte [items.size()][];
+        
+        for(int i=0; i<items.size(); i++)
+        {
+            Item item = items.get(i);
+            assert(item.where == Item.ON_MAP);
+            commands[i] = makeDropItemCommand(item).getBytes();
+        }
+        
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(256 * commands.length);
         
+        for(Client client : clients.values())
+        {
+            if(client.getCurrentRoom() != room)
+            {
+                continue;
+            }
+            
+            batch.reset();
+            
+            for(int i=0; i<commands.length; i++)
+            {
+                Item item = items.get(i);
+                if(client.canSee(item.position.x, item.position.y))
+                {
+                    batch.write(commands[i], 0, commands[i].length);
+                    client.addKnownMob(item.mobId);
+                }
+            }
+            
+            if(batch.size() > 0)
+            {
+                server.send(client.socket, batch.toByteArray());
+            }
+        }
+    }
+
+    
+    private String makeDropItemCommand(Item item)
+    {
         String command = 
                 "ADDI," +
                 "-" + "," +
@@ -1001,8 +1209,8 @@ public class CommandWorker implements ServerWorker
                 item.physicalDamage + "," +
                 item.baseItem.description + "," +
                 "\n";
-
-        roomcast(room.getServer(), command, room);
+        
+        return command;
     }
 
     
@@ -1024,18 +1232,349 @@ public class CommandWorker implements ServerWorker
         System.err.println("Roomcast " + room.name + " m=" + message);
         
         byte [] data = message.getBytes();
-        Set <SocketChannel> keys = clients.keySet();
         
-        for(SocketChannel socket : keys)
+        for(Client client : clients.values())
         {
-            Client client = clients.get(socket);
             if(client.getCurrentRoom() == room)
             {
-                server.send(socket, data);
+                server.send(client.socket, data);
+            }
+        }
+    }
+
+    
+    /**
+     * Send a message to all clients in the given room which can see
+     * the given position.
+     * @param server
+     * @param message 
+     */
+    public void viewcast(Server server, String message, Room room, int x, int y)
+    {
+        System.err.println("Viewcast " + room.name + " m=" + message);
+        
+        byte [] data = message.getBytes();
+        
+        for(Client client : clients.values())
+        {
+            if(client.getCurrentRoom() == room && client.canSee(x, y))
+            {
+                server.send(client.socket, data);
             }
         }
     }
+    
+    
+    /**
+     * Send a message about a layer 3 mob to all clients in the room which 
+     * know this mob. Clients which don't know the mob yet, but can see
+     * the given position, will get the mob first.
+     * 
+     * @param server
+     * @param message 
+     * @param mob The mob which the message is about
+     * @param x X position of interest, e.g. a move target
+     * @param y Y position of interest
+     * @param stateChange True if the message changes the state of the mob,
+     *        such messages are not sent to delta clients
+     */
+    public void mobcast(Server server, String message, Room room, Mob mob, int layer, int x, int y, boolean stateChange)
+    {
+        System.err.println("Mobcast " + room.name + " m=" + message);
+        
+        room.locate(mob);
+        
+        byte [] data = message.getBytes();
+        byte [] addData = null;
+        
+        for(Client client : clients.values())
+        {
+            if(client.getCurrentRoom() == room && 
+               !(client.deltaSync && stateChange))
+            {
+                if(!client.deltaSync && !client.knowsMob(mob.id) && 
+                   (client.canSee(mob.x, mob.y) || client.canSee(x, y)))
+                {
+                    // enter notification
+                    if(addData == null)
+                    {
+                        addData = makeAddMobCommand(mob, layer, "n").getBytes();
+                    }
+                    server.send(client.socket, addData);
+                    client.addKnownMob(mob.id);
+                }
 
+                if(client.knowsMob(mob.id))
+                {
+                    server.send(client.socket, data);
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Send an ADDM command for a new layer 3 mob to all clients in the 
+     * room which can see the mob.
+     */
+    private void addMobcast(Server server, String message, Room room, Mob mob)
+    {
+        byte [] data = message.getBytes();
+        
+        for(Client client : clients.values())
+        {
+            if(client.getCurrentRoom() == room && !client.deltaSync &&
+               client.canSee(mob.x, mob.y))
+            {
+                server.send(client.socket, data);
+                client.addKnownMob(mob.id);
+            }
+        }
+    }
+    
+    
+    /**
+     * Send an ADDI command for an item on the map to all clients in the 
+     * room which can see the item.
+     */
+    private void addItemcast(Server server, String message, Room room, Item item)
+    {
+        byte [] data = message.getBytes();
+        
+        for(Client client : clients.values())
+        {
+            if(client.getCurrentRoom() == room && client.canSee(item.position.x, item.position.y))
+            {
+                server.send(client.socket, data);
+                client.addKnownMob(item.mobId);
+            }
+        }
+    }
+    
+    
+    /**
+     * Send enter and leave notifications to all players in the room for 
+     * the mobs and map items which crossed the borders of their view.
+     * Projectiles are left out, clients know them from the FIRE command.
+     * Views only change if something moves or changes, so clients are 
+     * skipped while the room is still.
+     * 
+     * @param room The room to check
+     */
+    public void updateInterest(Room room)
+    {
+        Server server = room.getServer();
+        MobLayer mobs = room.getLayerMap(3);
+        IntMap <Item> items = room.getItems();
+        boolean still = room.getMotionTable().size() == 0;
+        
+        for(Client client : clients.values())
+        {
+            // clients without avatar see everything anyways,
+            // delta clients are handled by sendDeltas()
+            if(client.getCurrentRoom() != room || client.mob == null ||
+               client.deltaSync)
+            {
+                continue;
+            }
+            
+            if(still && room.getLastChange() <= client.scanVersion)
+            {
+                continue;
+            }
+            client.scanVersion = room.getChangeVersion();
+
+            for(int i=0; i<mobs.capacity(); i++)
+            {
+                Mob mob = mobs.valueAt(i);
+                if(mob == null || mob.type == Mob.TYPE_PROJECTILE)
+                {
+                    continue;
+                }
+                
+                room.locate(mob);
+                boolean visible = client.canSee(mob.x, mob.y);
+                boolean known = client.knowsMob(mob.id);
+
+                if(visible && !known)
+                {
+                    client.addKnownMob(mob.id);
+                    singlecast(server, client.socket, makeAddMobCommand(mob, 3, "n"));
+                    
+                    // mobs which are under way need their move, too
+                    Move move = room.getMotionTable().getMove(mob);
+                    if(move != null)
+                    {
+                        singlecast(server, client.socket, makeMoveCommand(move));
+                    }
+                }
+                else if(!visible && known)
+                {
+                    client.removeKnownMob(mob.id);
+                    singlecast(server, client.socket, "DELM," + mob.id + ",3\n");
+                }
+            }
+            
+            for(int i=0; i<items.capacity(); i++)
+            {
+                Item item = items.valueAt(i);
+                if(item == null)
+                {
+                    continue;
+                }
+                
+                boolean visible = client.canSee(item.position.x, item.position.y);
+                boolean known = client.knowsMob(item.mobId);
+                
+                if(visible && !known)
+                {
+                    client.addKnownMob(item.mobId);
+                    singlecast(server, client.socket, makeDropItemCommand(item));
+                }
+                else if(!visible && known)
+                {
+                    client.removeKnownMob(item.mobId);
+                    singlecast(server, client.socket, "DELM," + item.mobId + ",3\n");
+                }
+            }
+        }
+    }
+
+    
+    /**
+     * Send a message which changes the state of a mob to all clients in
+     * the given room which don't use delta synchronisation.
+     * @param server
+     * @param message 
+     */
+    private void statecast(Server server, String message, Room room)
+    {
+        System.err.println("Statecast " + room.name + " m=" + message);
+        
+        byte [] data = message.getBytes();
+        
+        for(Client client : clients.values())
+        {
+            if(client.getCurrentRoom() == room && !client.deltaSync)
+            {
+                server.send(client.socket, data);
+            }
+        }
+    }
+    
+    
+    /**
+     * Commit the state version of the room and send each delta client one
+     * DELT command with the mobs that changed since the version the client 
+     * acknowledged last. Several changes to a mob collapse into one entry.
+     * 
+     * Format: DELT,epoch,version,count,[id,layer,tile,frames,phases,x,y,scale,color,type]*,
+     *         removed count,[id,layer]*
+     * 
+     * The epoch changes with each room the client loads, the client sends
+     * it back with ACKV.
+     * 
+     * @param room The room to synchronise
+     */
+    public void sendDeltas(Room room)
+    {
+        int version = room.commitVersion();
+        int minAcked = version;
+        Server server = room.getServer();
+        MobLayer mobs = room.getLayerMap(3);
+        boolean still = room.getMotionTable().size() == 0;
+        
+        for(Client client : clients.values())
+        {
+            // the room a client is synchronised with only changes in the
+            // owner thread, after the LOAD reset of the client's versions
+            if(client.deltaRoom != room || !client.deltaSync)
+            {
+                continue;
+            }
+            
+            int acked = client.ackedVersion;
+            minAcked = Math.min(minAcked, acked);
+
+            StringBuilder updates = new StringBuilder();
+            StringBuilder removals = new StringBuilder();
+            int updateCount = 0;
+            int removeCount = room.appendRemoved(removals, acked, client);
+
+            // props don't move, the client gets all of them once per room
+            // and then only the ones which changed
+            if(client.propsEpoch != client.syncEpoch)
+            {
+                updateCount += room.appendProps(updates, 1);
+                updateCount += room.appendProps(updates, 5);
+                client.propsEpoch = client.syncEpoch;
+                client.propsVersion = version;
+            }
+            else
+            {
+                updateCount += room.appendChangedProps(updates, Math.max(acked, client.propsVersion));
+            }
+
+            // if the last scan had nothing to send, the client is up to
+            // date until something moves or changes
+            if(!still || room.getLastChange() > client.scanVersion)
+            {
+                boolean pending = false;
+                
+                for(int i=0; i<mobs.capacity(); i++)
+                {
+                    Mob mob = mobs.valueAt(i);
+                    if(mob == null || mob.type == Mob.TYPE_PROJECTILE)
+                    {
+                        continue;
+                    }
+
+                    // moving mobs are marked changed when located
+                    room.locate(mob);
+
+                    boolean visible = client.canSee(mob.x, mob.y);
+                    boolean known = client.knowsMob(mob.id);
+
+                    if(visible && (!known || mob.version > acked))
+                    {
+                        client.addKnownMob(mob.id);
+                        Room.appendDeltaEntry(updates, mob, 3);
+                        updateCount ++;
+                        pending = true;
+                    }
+                    else if(!visible && known)
+                    {
+                        client.removeKnownMob(mob.id);
+                        removals.append(',').append(mob.id).append(",3");
+                        removeCount ++;
+                    }
+                }
+                
+                // unacknowledged mobs are sent again with the next tick
+                client.scanVersion = pending ? 0 : version;
+            }
+            
+            if(updateCount > 0 || removeCount > 0)
+            {
+                StringBuilder message = new StringBuilder("DELT,");
+                message.append(client.syncEpoch);
+                message.append(',');
+                message.append(version);
+                message.append(',');
+                message.append(updateCount);
+                message.append(updates);
+                message.append(',');
+                message.append(removeCount);
+                message.append(removals);
+                message.append('\n');
+                
+                server.send(client.socket, message.toString().getBytes());
+            }
+        }
+        
+        room.pruneDeltaLog(minAcked);
+    }
+    
     
     /**
      * Send a message to all clients
@@ -1081,7 +1620,7 @@ public class CommandWorker implements ServerWorker
         {
             String command = makeAddMobCommand(mob, layer, "n");
         
-            roomcast(server, command, room);
+            addMobcast(server, command, room, mob);
         }
     }
 
@@ -1097,22 +1636,21 @@ public class CommandWorker implements ServerWorker
         SocketChannel senderSocket = client.socket;
         Server server = room.getServer();
         server.send(senderSocket, data);
+        client.addKnownMob(mob.id);
 
         // for everyone else in the room it is an ADDM
 
         message = makeAddMobCommand(mob, 3, client.displayName);
         data = message.getBytes();
 
-        Set <SocketChannel> keys = clients.keySet();
-        
-        for(SocketChannel socket : keys)
+        for(Client c : clients.values())
         {
-            if(socket != senderSocket)
+            if(c.socket != senderSocket)
             {
-                Client c = clients.get(socket);
-                if(c.getCurrentRoom() == room)
+                if(c.getCurrentRoom() == room && !c.deltaSync && c.canSee(mob.x, mob.y))
                 {
-                    server.send(socket, data);
+                    server.send(c.socket, data);
+                    c.addKnownMob(mob.id);
                 }
             }
         }        
@@ -10,12 +10,7 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
-import tinyplaces.server.data.CreatureCatalog;
-import tinyplaces.server.data.ItemCatalog;
-import tinyplaces.server.data.PopulationsCatalog;
-import tinyplaces.server.data.SpellCatalog;
-import tinyplaces.server.data.TransitionCatalog;
-import tinyplaces.server.data.TreasureClassCatalog;
+import tinyplaces.server.data.Catalogs;
 import tinyplaces.server.isomap.MapWorker;
 
 /**
@@ -55,12 +50,7 @@ public class Server implements Runnable
         this.selector = initSelector();
         this.worker = worker;
         
-        ItemCatalog.init(getClass().getResource("/tinyplaces/resources/items.csv"));
-        SpellCatalog.init(getClass().getResource("/tinyplaces/resources/spells.csv"));
-        CreatureCatalog.init(getClass().getResource("/tinyplaces/resources/creatures.csv"));
-        TreasureClassCatalog.init(getClass().getResource("/tinyplaces/resources/treasure_classes.csv"));
-        TransitionCatalog.init(getClass().getResource("/tinyplaces/resources/transitions.csv"));
-        PopulationsCatalog.init(getClass().getResource("/tinyplaces/resources/populations.csv"));
+        Catalogs.init(getClass());
     }
 
     
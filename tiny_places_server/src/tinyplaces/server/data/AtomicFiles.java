@@ -0,0 +1,64 @@
+package tinyplaces.server.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces files so that a crash leaves either the old or the new file
+ * behind, never a missing or partly written one.
+ */
+public class AtomicFiles
+{
+    /**
+     * Move a complete file over the target in one step, and force the
+     * directory entry to disk. The file itself must be synced before.
+     *
+     * @param temp The new file, in the same directory as the target
+     * @param target The file to replace, may not exist yet
+     * @throws IOException If the file system can't move files atomically
+     */
+    public static void replace(File temp, File target) throws IOException
+    {
+        Files.move(temp.toPath(), target.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+
+    /**
+     * Force the entries of a directory to disk, so a file which was just
+     * created or renamed in it survives a crash.
+     */
+    public static void syncDirectory(File dir) throws IOException
+    {
+        FileChannel channel;
+
+        try
+        {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        }
+        catch(IOException ex)
+        {
+            // Windows can't open directories, there renames are durable
+            // once the call returns
+            Logger.getLogger(AtomicFiles.class.getName()).log(Level.FINE, "Cannot open directory " + dir, ex);
+            return;
+        }
+
+        try
+        {
+            channel.force(true);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
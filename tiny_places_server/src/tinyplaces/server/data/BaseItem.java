@@ -24,7 +24,7 @@ public class BaseItem
     public int stackSize;
     public int baseValue;
     public int[] resistance = new int [Damage.TYPE_COUNT];
-    public String color;
+    public Rgba color;
     public float scale;
     public int energyDamageMin;
     public int energyDamageMax;
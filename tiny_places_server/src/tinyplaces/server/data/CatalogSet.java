@@ -0,0 +1,54 @@
+package tinyplaces.server.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * All game data catalogs of one load. The entries only refer to entries
+ * of the same set, and a set never changes after it was published.
+ */
+class CatalogSet
+{
+    final CatalogTable<BaseItem> items;
+    final CatalogTable<Spell> spells;
+    final CatalogTable<TreasureClass> treasureClasses;
+    final CatalogTable<Creature> creatures;
+    final HashMap<String, ArrayList<Transition>> transitions;
+    final HashMap<String, ArrayList<Population>> populations;
+
+    // counts the loads, see Catalogs.getGeneration()
+    final int generation;
+
+
+    /**
+     * An empty set, in use until the catalogs were loaded.
+     */
+    CatalogSet()
+    {
+        this(new CatalogTable<BaseItem> (0),
+             new CatalogTable<Spell> (0),
+             new CatalogTable<TreasureClass> (0),
+             new CatalogTable<Creature> (0),
+             new HashMap<String, ArrayList<Transition>> (),
+             new HashMap<String, ArrayList<Population>> (),
+             0);
+    }
+
+
+    CatalogSet(CatalogTable<BaseItem> items,
+               CatalogTable<Spell> spells,
+               CatalogTable<TreasureClass> treasureClasses,
+               CatalogTable<Creature> creatures,
+               HashMap<String, ArrayList<Transition>> transitions,
+               HashMap<String, ArrayList<Population>> populations,
+               int generation)
+    {
+        this.items = items;
+        this.spells = spells;
+        this.treasureClasses = treasureClasses;
+        this.creatures = creatures;
+        this.transitions = transitions;
+        this.populations = populations;
+        this.generation = generation;
+    }
+}
@@ -0,0 +1,169 @@
+package tinyplaces.server.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Binary snapshot of the loaded catalogs. Each catalog writes its entries
+ * as typed records, so a server start only has to map the file and copy
+ * the values, instead of splitting and parsing the CSV files. The snapshot
+ * holds a hash of each source file and is only used if they all match.
+ *
+ * Layout, big endian:
+ * <pre>
+ *   int magic, int version, int tables, per table: long hash of the source file
+ *   the records of items, spells, treasure classes, creatures, transitions
+ *   and populations, see the write() methods of the catalogs
+ * </pre>
+ * Strings are an int length and UTF-8 bytes, null has the length -1.
+ */
+class CatalogSnapshot
+{
+    private static final int MAGIC = 0x54504353; // "TPCS"
+
+    // increase this whenever the layout of a record changes
+    static final int VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    /**
+     * Read a snapshot. References between the catalogs are resolved
+     * by id, like when the CSV files are loaded.
+     *
+     * @param file The snapshot file
+     * @param hashes Hashes of the current source files, one per table
+     * @param generation The generation of the new set
+     * @return The catalogs, or null if the snapshot is missing, damaged,
+     * of another version or was made from different source files.
+     */
+    static CatalogSet read(File file, long [] hashes, int generation) throws IOException
+    {
+        if(!file.isFile())
+        {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if(in.remaining() < 12 ||
+               in.getInt() != MAGIC ||
+               in.getInt() != VERSION ||
+               in.getInt() != hashes.length)
+            {
+                return null;
+            }
+
+            for(int t=0; t<hashes.length; t++)
+            {
+                if(in.getLong() != hashes[t])
+                {
+                    return null;
+                }
+            }
+
+            CatalogTable<BaseItem> items = ItemCatalog.read(in);
+            CatalogTable<Spell> spells = SpellCatalog.read(in);
+            CatalogTable<TreasureClass> treasureClasses = TreasureClassCatalog.read(in, items);
+            CatalogTable<Creature> creatures = CreatureCatalog.read(in, spells, treasureClasses);
+
+            return new CatalogSet(items,
+                                  spells,
+                                  treasureClasses,
+                                  creatures,
+                                  TransitionCatalog.read(in),
+                                  PopulationsCatalog.read(in, creatures),
+                                  generation);
+        }
+        catch(RuntimeException ex)
+        {
+            // truncated or otherwise damaged snapshot, the caller loads 
+            // the CSV files
+            return null;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Write a snapshot of a catalog set. The file is written under a 
+     * temporary name first and then moved over the former snapshot.
+     */
+    static void write(File file, long [] hashes, CatalogSet set) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hashes.length);
+
+            for(long hash : hashes)
+            {
+                out.writeLong(hash);
+            }
+
+            ItemCatalog.write(set.items, out);
+            SpellCatalog.write(set.spells, out);
+            TreasureClassCatalog.write(set.treasureClasses, out);
+            CreatureCatalog.write(set.creatures, out);
+            TransitionCatalog.write(set.transitions, out);
+            PopulationsCatalog.write(set.populations, out);
+
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        AtomicFiles.replace(temp, file);
+    }
+
+
+    static String getString(ByteBuffer in)
+    {
+        int length = in.getInt();
+        if(length < 0)
+        {
+            return null;
+        }
+
+        byte [] bytes = new byte [length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    static void putString(DataOutputStream out, String text) throws IOException
+    {
+        if(text == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte [] bytes = text.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
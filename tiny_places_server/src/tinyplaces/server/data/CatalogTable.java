@@ -0,0 +1,47 @@
+package tinyplaces.server.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Entries of a catalog by id. A table is filled once while loading and
+ * must not change after it was published, readers don't lock.
+ */
+class CatalogTable<T>
+{
+    private final HashMap<String, T> byId;
+
+
+    CatalogTable(int capacity)
+    {
+        byId = new HashMap<String, T> (Math.max(16, capacity * 2));
+    }
+
+
+    void add(String id, T entry)
+    {
+        byId.put(id, entry);
+    }
+
+
+    T get(String id)
+    {
+        return byId.get(id);
+    }
+
+
+    int size()
+    {
+        return byId.size();
+    }
+
+
+    /**
+     * @return All entries, in no particular order
+     */
+    Collection<T> values()
+    {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+}
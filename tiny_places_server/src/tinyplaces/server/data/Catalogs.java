@@ -0,0 +1,292 @@
+package tinyplaces.server.data;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Loads all game data catalogs from their CSV files. The catalogs can be
+ * reloaded while the server runs, see reload(). All catalogs are
+ * published together as one CatalogSet.
+ * 
+ * With -Dtinyplaces.catalogSnapshot=file the loaded catalogs are kept in
+ * a binary snapshot, which later starts read instead of the CSV files as
+ * long as the files don't change. See CatalogSnapshot.
+ */
+public class Catalogs
+{
+    // in load order, catalogs resolve their references to the catalogs loaded before
+    private static final String [] TABLES =
+    {
+        "items", "spells", "treasure_classes", "creatures", "transitions", "populations"
+    };
+
+    // optional directory with catalog files, see findResource()
+    private static final String RESOURCE_DIR = System.getProperty("tinyplaces.resourceDir");
+
+    // optional snapshot file, no snapshot is used if not set
+    private static final String SNAPSHOT_FILE = System.getProperty("tinyplaces.catalogSnapshot");
+
+    private static final AtomicBoolean reloading = new AtomicBoolean();
+
+    // only written by the thread which loads the catalogs
+    private static long [] loadedHashes;
+
+    // replaced as a whole on load, never changed after publishing
+    private static volatile CatalogSet current = new CatalogSet();
+
+
+    /**
+     * Load all catalogs. Called once while the server starts.
+     */
+    public static void init(Class<?> base) throws IOException
+    {
+        load(base, true);
+    }
+
+
+    /**
+     * Reload all catalogs in a background thread, if any of the CSV files
+     * changed. The new catalogs are published with a single reference swap
+     * once all of them are complete, so readers never see a half loaded
+     * catalog, or catalogs of different loads side by side. Objects
+     * which were taken from the former catalogs, like the creature types
+     * of existing mobs, stay valid.
+     *
+     * @return false if a reload is already running.
+     */
+    public static boolean reload(final Class<?> base)
+    {
+        if(!reloading.compareAndSet(false, true))
+        {
+            return false;
+        }
+
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    load(base, false);
+                }
+                catch(Exception ex)
+                {
+                    // the former catalogs stay in use
+                    Logger.getLogger(Catalogs.class.getName()).log(Level.SEVERE, "Reloading the catalogs failed.", ex);
+                }
+                finally
+                {
+                    reloading.set(false);
+                }
+            }
+        }, "Catalog reload");
+
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+
+    /**
+     * @return A number which changes whenever the catalogs were reloaded.
+     * Lets callers notice when values they resolved once are outdated.
+     */
+    public static int getGeneration()
+    {
+        return current.generation;
+    }
+
+
+    /**
+     * @return The catalogs in use. Callers which look up several entries
+     * should keep the set, so all entries come from the same load.
+     */
+    static CatalogSet current()
+    {
+        return current;
+    }
+
+
+    private static void load(Class<?> base, boolean startup) throws IOException
+    {
+        long start = System.nanoTime();
+
+        byte [][] sources = new byte [TABLES.length][];
+        long [] hashes = new long [TABLES.length];
+
+        for(int t=0; t<TABLES.length; t++)
+        {
+            sources[t] = readAll(findResource(base, TABLES[t] + ".csv"));
+            hashes[t] = hash(sources[t]);
+        }
+
+        if(!startup && Arrays.equals(hashes, loadedHashes))
+        {
+            Logger.getLogger(Catalogs.class.getName()).log(Level.INFO, "Catalogs are unchanged, nothing to reload.");
+            return;
+        }
+
+        File snapshot = SNAPSHOT_FILE == null ? null : new File(SNAPSHOT_FILE);
+        CatalogSet set = null;
+
+        if(snapshot != null)
+        {
+            try
+            {
+                set = CatalogSnapshot.read(snapshot, hashes, current.generation + 1);
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(Catalogs.class.getName()).log(Level.WARNING, "Cannot read catalog snapshot " + snapshot, ex);
+            }
+        }
+
+        boolean fromSnapshot = set != null;
+
+        if(!fromSnapshot)
+        {
+            set = parseAll(sources, current.generation + 1);
+        }
+
+        current = set;
+        loadedHashes = hashes;
+
+        long time = (System.nanoTime() - start) / 1000;
+
+        Logger.getLogger(Catalogs.class.getName()).log(Level.INFO, "Catalogs loaded from {0} in {1} ms.",
+                new Object [] {fromSnapshot ? "snapshot" : "CSV files", time / 1000.0});
+
+        if(!fromSnapshot && snapshot != null)
+        {
+            try
+            {
+                CatalogSnapshot.write(snapshot, hashes, set);
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(Catalogs.class.getName()).log(Level.WARNING, "Cannot write catalog snapshot " + snapshot, ex);
+            }
+        }
+    }
+
+
+    private static CatalogSet parseAll(byte [][] sources, int generation) throws IOException
+    {
+        List<List<String []>> tables = new ArrayList<List<String []>>(TABLES.length);
+        for(byte [] source : sources)
+        {
+            tables.add(parse(source));
+        }
+
+        // the later catalogs resolve their references against the new
+        // tables, nothing is visible to readers before the set is complete
+        CatalogTable<BaseItem> items = ItemCatalog.load(tables.get(0));
+        CatalogTable<Spell> spells = SpellCatalog.load(tables.get(1));
+        CatalogTable<TreasureClass> treasureClasses = TreasureClassCatalog.load(tables.get(2), items);
+        CatalogTable<Creature> creatures = CreatureCatalog.load(tables.get(3), spells, treasureClasses);
+
+        return new CatalogSet(items,
+                              spells,
+                              treasureClasses,
+                              creatures,
+                              TransitionCatalog.load(tables.get(4)),
+                              PopulationsCatalog.load(tables.get(5), creatures),
+                              generation);
+    }
+
+
+    /**
+     * Catalog files in the resource directory take precedence over the
+     * ones on the class path, so they can be edited while the server runs.
+     */
+    private static URL findResource(Class<?> base, String name) throws IOException
+    {
+        if(RESOURCE_DIR != null)
+        {
+            File file = new File(RESOURCE_DIR, name);
+            if(file.isFile())
+            {
+                return file.toURI().toURL();
+            }
+        }
+
+        URL resource = base.getResource("/tinyplaces/resources/" + name);
+        if(resource == null)
+        {
+            throw new IOException("Catalog " + name + " not found.");
+        }
+
+        return resource;
+    }
+
+
+    private static byte [] readAll(URL resource) throws IOException
+    {
+        InputStream is = resource.openStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 14);
+        byte [] buffer = new byte [1 << 14];
+
+        try
+        {
+            int n;
+            while((n = is.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Split a CSV file into rows of fields. The first line holds the column
+     * headers and is left out.
+     */
+    private static List<String []> parse(byte [] csv) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv)));
+        List<String []> rows = new ArrayList<String []>(256);
+
+        // Read the column headers - not used at the moment
+        String line = reader.readLine();
+
+        while((line = reader.readLine()) != null)
+        {
+            rows.add(line.split(","));
+        }
+
+        reader.close();
+        return rows;
+    }
+
+
+    /**
+     * CRC32 of the data, with the length in the upper half. Good enough
+     * to notice edited files, and much faster than a cryptographic hash.
+     */
+    private static long hash(byte [] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return ((long)data.length << 32) | crc.getValue();
+    }
+}
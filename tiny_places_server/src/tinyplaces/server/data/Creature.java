@@ -1,58 +1,156 @@
 package tinyplaces.server.data;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
- *
+ * Creature type from the catalog. This data is shared by all creatures
+ * of the type and must not change, the state of a single creature is
+ * kept in a CreatureState.
+ * 
  * @author hjm
  */
-public class Creature implements Cloneable 
+public class Creature 
 {
-    public String id;
-    public String displayName;
-    public int tile;
-    public int frames;   // animation frames
-    public int phases;   // animation phases
+    public final String id;
+    public final String displayName;
+    public final int tile;
+    public final int frames;   // animation frames
+    public final int phases;   // animation phases
     
-    public int actualLife;
-
-    public int minLife;
-    public int maxLife;
-    public String pattern;  // movement pattern
-    public int speed;
-    int[] resistance = new int [Damage.TYPE_COUNT];
+    public final int minLife;
+    public final int maxLife;
+    public final String pattern;  // movement pattern
+    public final int speed;
+    final int[] resistance = new int [Damage.TYPE_COUNT];
     
-    public String spellId;
+    public final String spellId;
+    public final Spell spell; // null if the creature casts no spell
     
-    public String color;
-    public float scale;
-    public String treasureClasses;
+    public final Rgba color;
+    public final float scale;
+    public final String treasureClasses;
+    public final TreasureClass [] treasure;
     
     /**
-     * Creature an individual with randomized stats
-     * @return 
+     * Read a creature type from a line of the catalog.
+     * 
+     * @param spellTable The spells to resolve the spell id
+     * @param treasureTable The treasure classes to resolve the treasure class ids
      */
-    public Creature create() 
+    Creature(String [] parts, CatalogTable<Spell> spellTable, CatalogTable<TreasureClass> treasureTable)
     {
-        Creature c = null;
-        try 
+        int i = 0;
+        id = parts[i++];
+        displayName = parts[i++];
+        tile = Integer.parseInt(parts[i++]);
+        frames = Integer.parseInt(parts[i++]);
+        phases = Integer.parseInt(parts[i++]);
+
+        minLife = Integer.parseInt(parts[i++]);
+        maxLife = Integer.parseInt(parts[i++]);
+
+        resistance[Damage.TYPE_PHYSICAL] = Integer.parseInt(parts[i++]);
+        resistance[Damage.TYPE_FIRE] = Integer.parseInt(parts[i++]);
+        resistance[Damage.TYPE_COLD] = Integer.parseInt(parts[i++]);
+        resistance[Damage.TYPE_LIGHT] = Integer.parseInt(parts[i++]);
+        resistance[Damage.TYPE_CHAOS] = Integer.parseInt(parts[i++]);
+
+        spellId = parts[i++];
+        spell = spellTable.get(spellId);
+
+        String movement = parts[i++];
+        pattern = "-".equals(movement) ? null : movement;
+        speed = Integer.parseInt(parts[i++]);
+
+        color = Rgba.parse(parts[i++]);
+        scale = Float.parseFloat(parts[i++]);
+        treasureClasses = parts[i++];
+        treasure = TreasureClassCatalog.resolve(treasureClasses, treasureTable);
+    }
+    
+    
+    /**
+     * Read a creature type from a catalog snapshot, see write().
+     * 
+     * @param spellTable The spells to resolve the spell id
+     * @param treasureTable The treasure classes to resolve the treasure class ids
+     */
+    Creature(ByteBuffer in, CatalogTable<Spell> spellTable, CatalogTable<TreasureClass> treasureTable)
+    {
+        id = CatalogSnapshot.getString(in);
+        displayName = CatalogSnapshot.getString(in);
+        tile = in.getInt();
+        frames = in.getInt();
+        phases = in.getInt();
+
+        minLife = in.getInt();
+        maxLife = in.getInt();
+
+        for(int type=0; type<Damage.TYPE_COUNT; type++)
         {
-            c = (Creature)this.clone();
-            
-            // The only random stat right now is life
-            c.actualLife = minLife + (int)((maxLife - minLife + 1) * Math.random());
+            resistance[type] = in.getInt();
+        }
 
-        } catch (CloneNotSupportedException ex) {
-            Logger.getLogger(Creature.class.getName()).log(Level.SEVERE, null, ex);
+        spellId = CatalogSnapshot.getString(in);
+        spell = spellTable.get(spellId);
+
+        pattern = CatalogSnapshot.getString(in);
+        speed = in.getInt();
+
+        color = Rgba.valueOf(in.getInt());
+        scale = in.getFloat();
+        treasureClasses = CatalogSnapshot.getString(in);
+        treasure = TreasureClassCatalog.resolve(treasureClasses, treasureTable);
+    }
+    
+    
+    /**
+     * Write this creature type to a catalog snapshot.
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+        CatalogSnapshot.putString(out, id);
+        CatalogSnapshot.putString(out, displayName);
+        out.writeInt(tile);
+        out.writeInt(frames);
+        out.writeInt(phases);
+
+        out.writeInt(minLife);
+        out.writeInt(maxLife);
+
+        for(int type=0; type<Damage.TYPE_COUNT; type++)
+        {
+            out.writeInt(resistance[type]);
         }
+
+        CatalogSnapshot.putString(out, spellId);
+        CatalogSnapshot.putString(out, pattern);
+        out.writeInt(speed);
+
+        out.writeInt(color.rgba);
+        out.writeFloat(scale);
+        CatalogSnapshot.putString(out, treasureClasses);
+    }
+    
+    
+    public int getResistance(int type)
+    {
+        return resistance[type];
+    }
+    
+    
+    /**
+     * Creature an individual with randomized stats
+     * @param random The random number generator of the room
+     * @return The state of the new individual
+     */
+    public CreatureState create(FastRandom random) 
+    {
+        // The only random stat right now is life
+        int life = minLife + (int)((maxLife - minLife + 1) * random.nextDouble());
         
-        return c;
+        return new CreatureState(this, life);
     }
-
-    @Override
-    public Object clone() throws CloneNotSupportedException 
-    { 
-        return super.clone(); 
-    } 
 }
@@ -1,11 +1,9 @@
 package tinyplaces.server.data;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,59 +13,57 @@ import java.util.logging.Logger;
  */
 public class CreatureCatalog 
 {
-    private static final HashMap<String, Creature> allCreatures = new HashMap<String, Creature> (256);
-    
     public static Creature get(String id)
     {
-        return allCreatures.get(id);
+        return Catalogs.current().creatures.get(id);
     }
     
-    public static void init(URL resource) throws IOException
+    public static int size()
     {
-        InputStream is = resource.openStream();
-        InputStreamReader sr = new InputStreamReader(is);
-        BufferedReader reader = new BufferedReader(sr);
-
-        String line;
-        
-        // Read the column headers - not used at the moment
-        line = reader.readLine();
+        return Catalogs.current().creatures.size();
+    }
+    
+    static CatalogTable<Creature> load(List<String []> rows,
+                                       CatalogTable<Spell> spells,
+                                       CatalogTable<TreasureClass> treasureClasses)
+    {
+        CatalogTable<Creature> table = new CatalogTable<Creature> (rows.size());
         
-        while((line = reader.readLine()) != null)
+        for(String [] parts : rows)
         {
-            String [] parts = line.split(",");
-            Creature creature = new Creature();
-            
-            int i = 0;
-            creature.id = parts[i++];
-            creature.displayName = parts[i++];
-            creature.tile = Integer.parseInt(parts[i++]);
-            creature.frames = Integer.parseInt(parts[i++]);
-            creature.phases = Integer.parseInt(parts[i++]);
-
-            creature.minLife = Integer.parseInt(parts[i++]);
-            creature.maxLife = Integer.parseInt(parts[i++]);
-
-            creature.resistance[Damage.TYPE_PHYSICAL] = Integer.parseInt(parts[i++]);
-            creature.resistance[Damage.TYPE_FIRE] = Integer.parseInt(parts[i++]);
-            creature.resistance[Damage.TYPE_COLD] = Integer.parseInt(parts[i++]);
-            creature.resistance[Damage.TYPE_LIGHT] = Integer.parseInt(parts[i++]);
-            creature.resistance[Damage.TYPE_CHAOS] = Integer.parseInt(parts[i++]);
-            
-            creature.spellId = parts[i++];
-            
-            String pattern = parts[i++];
-            creature.pattern = "-".equals(pattern) ? null : pattern;
-            creature.speed = Integer.parseInt(parts[i++]);
-
-            creature.color = parts[i++];
-            creature.scale = Float.parseFloat(parts[i++]);
-            creature.treasureClasses = parts[i++];
-            
-            allCreatures.put(parts[0], creature);
+            Creature creature = new Creature(parts, spells, treasureClasses);
+            table.add(parts[0], creature);
         }
         
-        reader.close();
-        Logger.getLogger(CreatureCatalog.class.getName()).log(Level.INFO, "Loaded {0} creatures.", allCreatures.size());                        
+        Logger.getLogger(CreatureCatalog.class.getName()).log(Level.INFO, "Loaded {0} creatures.", table.size());                        
+        return table;
     }    
+    
+    
+    static CatalogTable<Creature> read(ByteBuffer in,
+                                       CatalogTable<Spell> spells,
+                                       CatalogTable<TreasureClass> treasureClasses)
+    {
+        int count = in.getInt();
+        CatalogTable<Creature> table = new CatalogTable<Creature> (count);
+        
+        for(int n=0; n<count; n++)
+        {
+            Creature creature = new Creature(in, spells, treasureClasses);
+            table.add(creature.id, creature);
+        }
+        
+        return table;
+    }
+    
+    
+    static void write(CatalogTable<Creature> table, DataOutputStream out) throws IOException
+    {
+        out.writeInt(table.size());
+        
+        for(Creature creature : table.values())
+        {
+            creature.write(out);
+        }
+    }
 }
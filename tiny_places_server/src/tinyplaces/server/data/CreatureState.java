@@ -0,0 +1,17 @@
+package tinyplaces.server.data;
+
+/**
+ * The state of a single creature. Everything which is the same for all
+ * creatures of a type is kept in the shared Creature.
+ */
+public class CreatureState 
+{
+    public final Creature creature;
+    public int actualLife;
+    
+    CreatureState(Creature creature, int life)
+    {
+        this.creature = creature;
+        this.actualLife = life;
+    }
+}
@@ -7,34 +7,26 @@ package tinyplaces.server.data;
  */
 public class Damage 
 {
-    public static int TYPE_PHYSICAL = 0;
-    public static int TYPE_FIRE = 1;
-    public static int TYPE_COLD = 2;
-    public static int TYPE_LIGHT = 3;
-    public static int TYPE_CHAOS = 4;
-    public static int TYPE_COUNT = 5;
+    public static final int TYPE_PHYSICAL = 0;
+    public static final int TYPE_FIRE = 1;
+    public static final int TYPE_COLD = 2;
+    public static final int TYPE_LIGHT = 3;
+    public static final int TYPE_CHAOS = 4;
+    public static final int TYPE_COUNT = 5;
     
-    public static int calculate(Creature target, Spell attack)
+    public static int calculate(Creature target, Spell attack, FastRandom random)
     {
-        int damage[] = new int[TYPE_COUNT];
-        
-        // plain damage
-        for(int i=0; i<TYPE_COUNT; i++)
-        {
-            damage[i] = attack.min[i] + (int)((attack.max[i] - attack.min[i] + 1) * Math.random());
-        }
-        
-        // resistances -> damage afterwards is in percent!
-        for(int i=0; i<TYPE_COUNT; i++)
-        {
-            damage[i] = damage[i] * (100 - target.resistance[i]);
-        }
-        
+        int [] min = attack.min;
+        int [] max = attack.max;
+        int [] resistance = target.resistance;
         int total = 0;
-
+        
+        // plain damage of each type, reduced by the resistance to it.
+        // The sum is in percent until the final division.
         for(int i=0; i<TYPE_COUNT; i++)
         {
-            total += damage[i];
+            int damage = min[i] + (int)((max[i] - min[i] + 1) * random.nextDouble());
+            total += damage * (100 - resistance[i]);
         }
         
         return total / 100;
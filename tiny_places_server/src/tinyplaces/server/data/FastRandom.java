@@ -0,0 +1,105 @@
+package tinyplaces.server.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small and fast random number generator (SplitMix64, the generator
+ * behind java.util.SplittableRandom). Not thread safe, every thread or
+ * room uses its own instance.
+ *
+ * If the system property "tinyplaces.seed" is set, all generators made
+ * by forStream() derive their seed from it, so runs can be repeated.
+ */
+public class FastRandom
+{
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private static final Long MASTER_SEED = parseSeed(System.getProperty("tinyplaces.seed"));
+
+    // varies the seeds of unseeded generators
+    private static final AtomicLong seedUniquifier = new AtomicLong(System.nanoTime());
+
+    private long state;
+
+
+    public FastRandom(long seed)
+    {
+        state = seed;
+    }
+
+
+    /**
+     * Make a generator for a named stream of random numbers, e.g. a room.
+     * With a master seed, the same name always gets the same sequence,
+     * no matter in which order the generators are made.
+     */
+    public static FastRandom forStream(String name)
+    {
+        if(MASTER_SEED != null)
+        {
+            return new FastRandom(mix(MASTER_SEED ^ mix(name.hashCode())));
+        }
+
+        return new FastRandom(mix(seedUniquifier.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime()));
+    }
+
+
+    public long nextLong()
+    {
+        return mix(state += GOLDEN_GAMMA);
+    }
+
+
+    /**
+     * @return A value from 0 (inclusive) to 1 (exclusive), like Math.random()
+     */
+    public double nextDouble()
+    {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+
+    /**
+     * @return A value from 0 (inclusive) to bound (exclusive), 0 if bound
+     * is not positive.
+     */
+    public int nextInt(int bound)
+    {
+        if(bound <= 0)
+        {
+            return 0;
+        }
+
+        // multiply and shift instead of modulo, very small bias at most
+        return (int)(((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+
+    private static Long parseSeed(String seed)
+    {
+        if(seed == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return Long.valueOf(seed.trim());
+        }
+        catch(NumberFormatException ex)
+        {
+            Logger.getLogger(FastRandom.class.getName()).log(Level.WARNING, "Ignoring invalid seed {0}", seed);
+            return null;
+        }
+    }
+
+
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,133 @@
+package tinyplaces.server.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands out ids which are unique over server restarts. Ids are reserved
+ * in blocks, and only the end of the reserved range is kept in a counter
+ * file. After a restart, the ids left in the last block are skipped.
+ *
+ * Taking an id doesn't lock, only the thread which runs over the end of
+ * a block writes the next reservation to disk, and the other threads
+ * wait for it.
+ */
+public class IdAllocator
+{
+    private final File file;
+    private final int blockSize;
+
+    // next id to hand out
+    private final AtomicLong next;
+
+    // ids below this limit are reserved on disk
+    private volatile long limit;
+
+
+    /**
+     * @param file The counter file, created if it doesn't exist
+     * @param blockSize Number of ids to reserve with each write
+     * @throws IOException If the counter file exists but can't be read
+     */
+    public IdAllocator(File file, int blockSize) throws IOException
+    {
+        this.file = file;
+        this.blockSize = blockSize;
+
+        long start = 1;
+
+        if(file.exists())
+        {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try
+            {
+                start = in.readLong();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        next = new AtomicLong(start);
+        limit = start;
+    }
+
+
+    public int nextId()
+    {
+        long id = next.getAndIncrement();
+
+        if(id >= limit)
+        {
+            reserve(id);
+        }
+
+        if(id > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("Ran out of ids in " + file);
+        }
+
+        return (int)id;
+    }
+
+
+    private synchronized void reserve(long id)
+    {
+        // another thread might have reserved the block meanwhile
+        while(id >= limit)
+        {
+            long newLimit = limit + blockSize;
+
+            try
+            {
+                write(newLimit);
+            }
+            catch(IOException ex)
+            {
+                // handing out ids which are not on disk could reuse them after a restart
+                Logger.getLogger(IdAllocator.class.getName()).log(Level.SEVERE, "Cannot reserve ids in " + file, ex);
+                throw new IllegalStateException("Cannot reserve ids in " + file, ex);
+            }
+
+            limit = newLimit;
+        }
+    }
+
+
+    /**
+     * Write the new limit to a temporary file, force it to disk and move
+     * it over the counter, so a crash never leaves a damaged counter behind.
+     */
+    private void write(long value) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        writeSynced(temp, value);
+        AtomicFiles.replace(temp, file);
+    }
+
+
+    private static void writeSynced(File target, long value) throws IOException
+    {
+        FileOutputStream fos = new FileOutputStream(target);
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(value);
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+    }
+}
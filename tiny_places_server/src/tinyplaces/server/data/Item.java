@@ -33,16 +33,16 @@ public class Item
     public final int energyDamage;
     public final int physicalDamage;
     
-    public Item(BaseItem baseItem)
+    public Item(BaseItem baseItem, FastRandom random)
     {
         this.baseItem = baseItem;
         this.position = new Point();
-        energyDamage = randomFromRange(baseItem.energyDamageMin, baseItem.energyDamageMax);
-        physicalDamage = randomFromRange(baseItem.physicalDamageMin, baseItem.physicalDamageMax);
+        energyDamage = randomFromRange(random, baseItem.energyDamageMin, baseItem.energyDamageMax);
+        physicalDamage = randomFromRange(random, baseItem.physicalDamageMin, baseItem.physicalDamageMax);
     }
 
-    private int randomFromRange(int min, int max) 
+    private static int randomFromRange(FastRandom random, int min, int max) 
     {
-        return (int)(min + Math.random() * (max-min+1));
+        return (int)(min + random.nextDouble() * (max-min+1));
     }
 }
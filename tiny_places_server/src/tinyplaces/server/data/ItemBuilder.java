@@ -1,23 +1,30 @@
 package tinyplaces.server.data;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  *
  * @author hjm
  */
 public class ItemBuilder 
 {
-    // Todo - make this a permanent counter
-    // over server restarts. There should never
-    // be duplicate item id's
-    private static int nextID = 1;
+    // item ids are never reused, not even over server restarts
+    private static final IdAllocator itemIds = 
+            openAllocator(System.getProperty("tinyplaces.itemIdFile", "item_ids.counter"), 1024);
     
-    public static Item create(String baseId)
+    public static Item create(String baseId, FastRandom random)
     {
-        BaseItem baseItem = ItemCatalog.get(baseId);
-        
-        Item item = new Item(baseItem);
+        return create(ItemCatalog.get(baseId), random);
+    }
+    
+    public static Item create(BaseItem baseItem, FastRandom random)
+    {
+        Item item = new Item(baseItem, random);
         item.displayName = baseItem.displayName;
-        item.id = nextID ++;
+        item.id = itemIds.nextId();
         
         
         // todo - randomly enhanced items
@@ -25,4 +32,18 @@ public class ItemBuilder
         
         return item;
     }
+    
+    private static IdAllocator openAllocator(String filename, int blockSize)
+    {
+        try
+        {
+            return new IdAllocator(new File(filename), blockSize);
+        }
+        catch(IOException ex)
+        {
+            // starting over at 1 would hand out used ids again
+            Logger.getLogger(ItemBuilder.class.getName()).log(Level.SEVERE, "Cannot read item id counter " + filename, ex);
+            throw new IllegalStateException("Cannot read item id counter " + filename, ex);
+        }
+    }
 }
@@ -1,11 +1,9 @@
 package tinyplaces.server.data;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,12 +14,9 @@ import java.util.logging.Logger;
  */
 public class ItemCatalog 
 {
-    private static final HashMap<String, BaseItem> allBaseItems = new HashMap<String, BaseItem> (256);
-    
-    
     public static BaseItem get(String id)
     {
-        BaseItem baseItem = allBaseItems.get(id);
+        BaseItem baseItem = Catalogs.current().items.get(id);
         if(baseItem == null)
         {
             Logger.getLogger(ItemCatalog.class.getName()).log(Level.WARNING, "BaseItem {0} not found in catalog.", id);                
@@ -31,23 +26,18 @@ public class ItemCatalog
     }
     
     
-    public static void init(URL resource) throws IOException
+    public static int size()
     {
-        // InputStream is = Class.class.getClass().getResourceAsStream("/tinyplaces/resources/items.csv");
-
-        InputStream is = resource.openStream();
-        
-        InputStreamReader sr = new InputStreamReader(is);
-        BufferedReader reader = new BufferedReader(sr);
-
-        String line;
-        
-        // Read the column headers - not used at the moment
-        line = reader.readLine();
+        return Catalogs.current().items.size();
+    }
+    
+    
+    static CatalogTable<BaseItem> load(List<String []> rows)
+    {
+        CatalogTable<BaseItem> table = new CatalogTable<BaseItem> (rows.size());
         
-        while((line = reader.readLine()) != null)
+        for(String [] parts : rows)
         {
-            String [] parts = line.split(",");
             BaseItem baseItem = new BaseItem();
             
             int i = 0;
@@ -60,7 +50,7 @@ public class ItemCatalog
             baseItem.shadowScale = Float.parseFloat(parts[i++]);
             baseItem.width = Integer.parseInt(parts[i++]);
             baseItem.height = Integer.parseInt(parts[i++]);
-            baseItem.color = parts[i++];
+            baseItem.color = Rgba.parse(parts[i++]);
             baseItem.scale = Float.parseFloat(parts[i++]);
             baseItem.canDrop = "1".equals(parts[i++]);
             baseItem.stackSize = Integer.parseInt(parts[i++]);
@@ -78,11 +68,75 @@ public class ItemCatalog
             baseItem.resistance[Damage.TYPE_LIGHT] = Integer.parseInt(parts[i++]);
             baseItem.resistance[Damage.TYPE_CHAOS] = Integer.parseInt(parts[i++]);
 */
-            allBaseItems.put(parts[0], baseItem);
+            table.add(parts[0], baseItem);
         }
         
-        reader.close();
-        
-        Logger.getLogger(ItemCatalog.class.getName()).log(Level.INFO, "Loaded {0} items.", allBaseItems.size());                
+        Logger.getLogger(ItemCatalog.class.getName()).log(Level.INFO, "Loaded {0} items.", table.size());                
+        return table;
     }    
+    
+    
+    static CatalogTable<BaseItem> read(ByteBuffer in)
+    {
+        int count = in.getInt();
+        CatalogTable<BaseItem> table = new CatalogTable<BaseItem> (count);
+        
+        for(int n=0; n<count; n++)
+        {
+            BaseItem baseItem = new BaseItem();
+            
+            baseItem.id = CatalogSnapshot.getString(in);
+            baseItem.displayName = CatalogSnapshot.getString(in);
+            baseItem.iclass = CatalogSnapshot.getString(in);
+            baseItem.itype = CatalogSnapshot.getString(in);
+            baseItem.tile = in.getInt();
+            baseItem.shadow = in.getInt();
+            baseItem.shadowScale = in.getFloat();
+            baseItem.width = in.getInt();
+            baseItem.height = in.getInt();
+            baseItem.color = Rgba.valueOf(in.getInt());
+            baseItem.scale = in.getFloat();
+            baseItem.canDrop = in.get() != 0;
+            baseItem.stackSize = in.getInt();
+            baseItem.baseValue = in.getInt();
+            baseItem.energyDamageMin = in.getInt();
+            baseItem.energyDamageMax = in.getInt();
+            baseItem.physicalDamageMin = in.getInt();
+            baseItem.physicalDamageMax = in.getInt();
+            baseItem.description = CatalogSnapshot.getString(in);
+
+            table.add(baseItem.id, baseItem);
+        }
+        
+        return table;
+    }
+    
+    
+    static void write(CatalogTable<BaseItem> table, DataOutputStream out) throws IOException
+    {
+        out.writeInt(table.size());
+        
+        for(BaseItem baseItem : table.values())
+        {
+            CatalogSnapshot.putString(out, baseItem.id);
+            CatalogSnapshot.putString(out, baseItem.displayName);
+            CatalogSnapshot.putString(out, baseItem.iclass);
+            CatalogSnapshot.putString(out, baseItem.itype);
+            out.writeInt(baseItem.tile);
+            out.writeInt(baseItem.shadow);
+            out.writeFloat(baseItem.shadowScale);
+            out.writeInt(baseItem.width);
+            out.writeInt(baseItem.height);
+            out.writeInt(baseItem.color.rgba);
+            out.writeFloat(baseItem.scale);
+            out.writeByte(baseItem.canDrop ? 1 : 0);
+            out.writeInt(baseItem.stackSize);
+            out.writeInt(baseItem.baseValue);
+            out.writeInt(baseItem.energyDamageMin);
+            out.writeInt(baseItem.energyDamageMax);
+            out.writeInt(baseItem.physicalDamageMin);
+            out.writeInt(baseItem.physicalDamageMax);
+            CatalogSnapshot.putString(out, baseItem.description);
+        }
+    }
 }
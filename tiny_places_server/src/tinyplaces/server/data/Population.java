@@ -7,6 +7,7 @@ package tinyplaces.server.data;
 public class Population 
 {
     public String creatureId;
+    public Creature creature;
     public int minCount;
     public int maxCount;
     public int x,y;
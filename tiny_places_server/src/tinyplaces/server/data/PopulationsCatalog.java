@@ -1,13 +1,12 @@
 package tinyplaces.server.data;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,49 +16,95 @@ import java.util.logging.Logger;
  */
 public class PopulationsCatalog 
 {
-    private static final HashMap<String, ArrayList<Population>> allPopulations = new HashMap<String, ArrayList<Population>> (1024);
-    
     public static List<Population> get(String map)
     {
-        return allPopulations.get(map);
+        return Catalogs.current().populations.get(map);
     }
     
-    public static void init(URL resource) throws IOException
+    static HashMap<String, ArrayList<Population>> load(List<String []> rows, CatalogTable<Creature> creatures)
     {
-        InputStream is = resource.openStream();
-        InputStreamReader sr = new InputStreamReader(is);
-        BufferedReader reader = new BufferedReader(sr);
-        
-        String line;
+        HashMap<String, ArrayList<Population>> table = new HashMap<String, ArrayList<Population>> (1024);
         
-        // Read the column headers - not used at the moment
-        line = reader.readLine();
-        
-        while((line = reader.readLine()) != null)
+        for(String [] parts : rows)
         {
-            String [] parts = line.split(",");
             Population population = new Population();
             int i = 0;
             
             String mapId = parts[i++];
             population.creatureId = parts[i++];
+            population.creature = creatures.get(population.creatureId);
             population.minCount = Integer.parseInt(parts[i++]);
             population.maxCount = Integer.parseInt(parts[i++]);
             population.x = Integer.parseInt(parts[i++]);
             population.y = Integer.parseInt(parts[i++]);
             population.spacing = Integer.parseInt(parts[i++]);
             
-            ArrayList<Population> populations =  allPopulations.get(mapId);
+            ArrayList<Population> populations =  table.get(mapId);
             if(populations == null)
             {
                 populations = new ArrayList<Population>(16);
-                allPopulations.put(mapId, populations);
+                table.put(mapId, populations);
             }
             
             populations.add(population);
         }
 
-        reader.close();
-        Logger.getLogger(PopulationsCatalog.class.getName()).log(Level.INFO, "Loaded {0} map populations.", allPopulations.size());                        
+        Logger.getLogger(PopulationsCatalog.class.getName()).log(Level.INFO, "Loaded {0} map populations.", table.size());                        
+        return table;
+    }
+    
+    
+    static HashMap<String, ArrayList<Population>> read(ByteBuffer in, CatalogTable<Creature> creatures)
+    {
+        int maps = in.getInt();
+        HashMap<String, ArrayList<Population>> table = new HashMap<String, ArrayList<Population>> (Math.max(1024, maps * 2));
+        
+        for(int m=0; m<maps; m++)
+        {
+            String mapId = CatalogSnapshot.getString(in);
+            int count = in.getInt();
+            ArrayList<Population> populations = new ArrayList<Population>(Math.max(16, count));
+            
+            for(int n=0; n<count; n++)
+            {
+                Population population = new Population();
+                
+                population.creatureId = CatalogSnapshot.getString(in);
+                population.creature = creatures.get(population.creatureId);
+                population.minCount = in.getInt();
+                population.maxCount = in.getInt();
+                population.x = in.getInt();
+                population.y = in.getInt();
+                population.spacing = in.getInt();
+                
+                populations.add(population);
+            }
+            
+            table.put(mapId, populations);
+        }
+        
+        return table;
+    }
+    
+    
+    static void write(HashMap<String, ArrayList<Population>> table, DataOutputStream out) throws IOException
+    {
+        out.writeInt(table.size());
+        
+        for(Map.Entry<String, ArrayList<Population>> entry : table.entrySet())
+        {
+            CatalogSnapshot.putString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            
+            for(Population population : entry.getValue())
+            {
+                CatalogSnapshot.putString(out, population.creatureId);
+                out.writeInt(population.minCount);
+                out.writeInt(population.maxCount);
+                out.writeInt(population.x);
+                out.writeInt(population.y);
+                out.writeInt(population.spacing);
+            }
+        }
     }
 }
@@ -0,0 +1,161 @@
+package tinyplaces.server.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An RGBA colour, packed into an int with 8 bits per channel. Colours
+ * are interned, so each distinct colour exists only once, and it keeps
+ * its text form "r g b a" for the network messages and map files.
+ */
+public final class Rgba 
+{
+    private static final ConcurrentHashMap <Integer, Rgba> colors = new ConcurrentHashMap<Integer, Rgba>(256);
+
+    public static final Rgba WHITE = valueOf(0xFFFFFFFF);
+    
+    /** Red in the highest byte, alpha in the lowest */
+    public final int rgba;
+    
+    private final String text;
+    
+    
+    private Rgba(int rgba)
+    {
+        this.rgba = rgba;
+        this.text = format(rgba >>> 24) + " " + 
+                    format((rgba >>> 16) & 255) + " " + 
+                    format((rgba >>> 8) & 255) + " " + 
+                    format(rgba & 255);
+    }
+    
+    
+    public static Rgba valueOf(int rgba)
+    {
+        Rgba color = colors.get(rgba);
+        
+        if(color == null)
+        {
+            color = new Rgba(rgba);
+            Rgba known = colors.putIfAbsent(rgba, color);
+            if(known != null)
+            {
+                color = known;
+            }
+        }
+        
+        return color;
+    }
+    
+    
+    /**
+     * Parse a colour in the form "r g b a" with components from 0 to 1.
+     * If alpha is missing, it defaults to 1.
+     * 
+     * @throws IllegalArgumentException if the text is no valid colour
+     */
+    public static Rgba parse(String text)
+    {
+        String [] parts = text.trim().split("\\s+");
+        
+        if(parts.length < 3)
+        {
+            throw new IllegalArgumentException("Colors need three components at least, but only " 
+                                               + parts.length + " were given.");
+        }
+        
+        int r = channel(parts[0]);
+        int g = channel(parts[1]);
+        int b = channel(parts[2]);
+        int a = parts.length > 3 ? channel(parts[3]) : 255;
+        
+        return valueOf((r << 24) | (g << 16) | (b << 8) | a);
+    }
+    
+    
+    public int red()
+    {
+        return rgba >>> 24;
+    }
+    
+    
+    public int green()
+    {
+        return (rgba >>> 16) & 255;
+    }
+    
+    
+    public int blue()
+    {
+        return (rgba >>> 8) & 255;
+    }
+    
+    
+    public int alpha()
+    {
+        return rgba & 255;
+    }
+    
+    
+    /**
+     * @return The colour as "r g b a", components from 0 to 1.
+     */
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+
+    
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof Rgba && ((Rgba)o).rgba == rgba;
+    }
+
+    
+    @Override
+    public int hashCode()
+    {
+        return rgba;
+    }
+    
+    
+    private static int channel(String part)
+    {
+        float f = Float.parseFloat(part);
+        
+        // the editor sometimes writes values slightly above 1
+        f = Math.max(0, Math.min(1, f));
+        
+        return Math.round(f * 255);
+    }
+    
+    
+    /**
+     * Format a channel with up to three decimals, which is enough to 
+     * tell all 256 values apart.
+     */
+    private static String format(int channel)
+    {
+        if(channel == 0)
+        {
+            return "0";
+        }
+        if(channel == 255)
+        {
+            return "1";
+        }
+        
+        int milli = Math.round(channel * 1000 / 255.0f);
+        String digits = "" + (1000 + milli);
+        
+        // drop the leading 1 and trailing zeros
+        int end = digits.length();
+        while(digits.charAt(end - 1) == '0')
+        {
+            end --;
+        }
+        
+        return "0." + digits.substring(1, end);
+    }
+}
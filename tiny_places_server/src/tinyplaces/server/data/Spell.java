@@ -15,4 +15,5 @@ public class Spell
     int max[] = new int [Damage.TYPE_COUNT];
     public int speed;
     public int castTime; // milliseconds
+    public int radius;   // area of effect, 0 for single target spells
 }
@@ -1,11 +1,9 @@
 package tinyplaces.server.data;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,27 +14,22 @@ import java.util.logging.Logger;
  */
 public class SpellCatalog 
 {
-    private static final HashMap<String, Spell> allSpells = new HashMap<String, Spell> (256);
-    
     public static Spell get(String id)
     {
-        return allSpells.get(id);
+        return Catalogs.current().spells.get(id);
     }
     
-    public static void init(URL resource) throws IOException
+    public static int size()
     {
-        InputStream is = resource.openStream();
-        InputStreamReader sr = new InputStreamReader(is);
-        BufferedReader reader = new BufferedReader(sr);
-        
-        String line;
-        
-        // Read the column headers - not used at the moment
-        line = reader.readLine();
+        return Catalogs.current().spells.size();
+    }
+    
+    static CatalogTable<Spell> load(List<String []> rows)
+    {
+        CatalogTable<Spell> table = new CatalogTable<Spell> (rows.size());
         
-        while((line = reader.readLine()) != null)
+        for(String [] parts : rows)
         {
-            String [] parts = line.split(",");
             Spell spell = new Spell();
             int i = 0;
             
@@ -56,10 +49,66 @@ public class SpellCatalog
             spell.speed = Integer.parseInt(parts[i++]);
             spell.castTime = Integer.parseInt(parts[i++]);
             
-            allSpells.put(parts[0], spell);
+            // optional column
+            spell.radius = i < parts.length ? Integer.parseInt(parts[i++]) : 0;
+            
+            table.add(parts[0], spell);
         }
 
-        reader.close();
-        Logger.getLogger(SpellCatalog.class.getName()).log(Level.INFO, "Loaded {0} spells.", allSpells.size());                        
+        Logger.getLogger(SpellCatalog.class.getName()).log(Level.INFO, "Loaded {0} spells.", table.size());                        
+        return table;
+    }
+    
+    
+    static CatalogTable<Spell> read(ByteBuffer in)
+    {
+        int count = in.getInt();
+        CatalogTable<Spell> table = new CatalogTable<Spell> (count);
+        
+        for(int n=0; n<count; n++)
+        {
+            Spell spell = new Spell();
+            
+            spell.id = CatalogSnapshot.getString(in);
+            spell.displayName = CatalogSnapshot.getString(in);
+            spell.ptype = CatalogSnapshot.getString(in);
+            
+            for(int type=0; type<Damage.TYPE_COUNT; type++)
+            {
+                spell.min[type] = in.getInt();
+                spell.max[type] = in.getInt();
+            }
+            
+            spell.speed = in.getInt();
+            spell.castTime = in.getInt();
+            spell.radius = in.getInt();
+            
+            table.add(spell.id, spell);
+        }
+        
+        return table;
+    }
+    
+    
+    static void write(CatalogTable<Spell> table, DataOutputStream out) throws IOException
+    {
+        out.writeInt(table.size());
+        
+        for(Spell spell : table.values())
+        {
+            CatalogSnapshot.putString(out, spell.id);
+            CatalogSnapshot.putString(out, spell.displayName);
+            CatalogSnapshot.putString(out, spell.ptype);
+            
+            for(int type=0; type<Damage.TYPE_COUNT; type++)
+            {
+                out.writeInt(spell.min[type]);
+                out.writeInt(spell.max[type]);
+            }
+            
+            out.writeInt(spell.speed);
+            out.writeInt(spell.castTime);
+            out.writeInt(spell.radius);
+        }
     }
 }
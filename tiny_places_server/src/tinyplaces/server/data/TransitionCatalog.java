@@ -1,13 +1,12 @@
 package tinyplaces.server.data;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,27 +16,17 @@ import java.util.logging.Logger;
  */
 public class TransitionCatalog 
 {
-    private static final HashMap<String, ArrayList<Transition>> allTransitions = new HashMap<String, ArrayList<Transition>> (1024);
-    
     public static List<Transition> get(String fromMap)
     {
-        return allTransitions.get(fromMap);
+        return Catalogs.current().transitions.get(fromMap);
     }
     
-    public static void init(URL resource) throws IOException
+    static HashMap<String, ArrayList<Transition>> load(List<String []> rows)
     {
-        InputStream is = resource.openStream();
-        InputStreamReader sr = new InputStreamReader(is);
-        BufferedReader reader = new BufferedReader(sr);
-        
-        String line;
+        HashMap<String, ArrayList<Transition>> table = new HashMap<String, ArrayList<Transition>> (1024);
         
-        // Read the column headers - not used at the moment
-        line = reader.readLine();
-        
-        while((line = reader.readLine()) != null)
+        for(String [] parts : rows)
         {
-            String [] parts = line.split(",");
             Transition transition = new Transition();
             int i = 0;
             
@@ -53,17 +42,74 @@ public class TransitionCatalog
             System.err.println("fromMap=" + transition.fromMap);
             
             
-            ArrayList<Transition> transitions =  allTransitions.get(transition.fromMap);
+            ArrayList<Transition> transitions =  table.get(transition.fromMap);
             if(transitions == null)
             {
                 transitions = new ArrayList<Transition>(16);
-                allTransitions.put(transition.fromMap, transitions);
+                table.put(transition.fromMap, transitions);
             }
             
             transitions.add(transition);
         }
 
-        reader.close();
-        Logger.getLogger(TransitionCatalog.class.getName()).log(Level.INFO, "Loaded {0} map transitions.", allTransitions.size());                        
+        Logger.getLogger(TransitionCatalog.class.getName()).log(Level.INFO, "Loaded {0} map transitions.", table.size());                        
+        return table;
+    }
+    
+    
+    static HashMap<String, ArrayList<Transition>> read(ByteBuffer in)
+    {
+        int maps = in.getInt();
+        HashMap<String, ArrayList<Transition>> table = new HashMap<String, ArrayList<Transition>> (Math.max(1024, maps * 2));
+        
+        for(int m=0; m<maps; m++)
+        {
+            String fromMap = CatalogSnapshot.getString(in);
+            int count = in.getInt();
+            ArrayList<Transition> transitions = new ArrayList<Transition>(Math.max(16, count));
+            
+            for(int n=0; n<count; n++)
+            {
+                Transition transition = new Transition();
+                
+                transition.id = CatalogSnapshot.getString(in);
+                transition.displayName = CatalogSnapshot.getString(in);
+                transition.fromMap = fromMap;
+                transition.fromX = in.getInt();
+                transition.fromY = in.getInt();
+                transition.toMap = CatalogSnapshot.getString(in);
+                transition.toX = in.getInt();
+                transition.toY = in.getInt();
+                
+                transitions.add(transition);
+            }
+            
+            table.put(fromMap, transitions);
+        }
+        
+        return table;
+    }
+    
+    
+    static void write(HashMap<String, ArrayList<Transition>> table, DataOutputStream out) throws IOException
+    {
+        out.writeInt(table.size());
+        
+        for(Map.Entry<String, ArrayList<Transition>> entry : table.entrySet())
+        {
+            CatalogSnapshot.putString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            
+            for(Transition transition : entry.getValue())
+            {
+                CatalogSnapshot.putString(out, transition.id);
+                CatalogSnapshot.putString(out, transition.displayName);
+                out.writeInt(transition.fromX);
+                out.writeInt(transition.fromY);
+                CatalogSnapshot.putString(out, transition.toMap);
+                out.writeInt(transition.toX);
+                out.writeInt(transition.toY);
+            }
+        }
     }
 }
@@ -1,6 +1,6 @@
 package tinyplaces.server.data;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  *
@@ -8,7 +8,118 @@ import java.util.ArrayList;
  */
 public class TreasureClass 
 {
+    /** Drops are reported as bit masks, so there can't be more items */
+    public static final int MAX_ITEMS = 64;
+    
+    // classes up to this size get a drop table
+    private static final int TABLE_ITEMS = 8;
+    
     public String id;
-    public ArrayList<Double> chances = new ArrayList<Double> (16);        
-    public ArrayList<String> items = new ArrayList<String> (16);        
+    
+    // chance of each item to drop, from 0 to 1
+    public double [] chances = new double [0];
+    public BaseItem [] items = new BaseItem [0];
+    
+    // all combinations of drops with their cumulative probability,
+    // null if the class is too big for a table
+    private long [] dropMasks;
+    private double [] dropLimits;
+    
+    void add(double chance, BaseItem item)
+    {
+        int n = items.length;
+        chances = Arrays.copyOf(chances, n + 1);
+        items = Arrays.copyOf(items, n + 1);
+        chances[n] = Math.max(0, Math.min(1, chance));
+        items[n] = item;
+    }
+    
+    /**
+     * Build the drop table. Each item drops on its own with its chance,
+     * so a class of n items has 2^n possible outcomes. For small classes
+     * the outcomes are listed with their cumulative probability, and a
+     * single random number picks one of them.
+     */
+    void compile()
+    {
+        int n = items.length;
+        if(n > TABLE_ITEMS)
+        {
+            dropMasks = null;
+            dropLimits = null;
+            return;
+        }
+    
+        int combinations = 1 << n;
+        long [] masks = new long [combinations];
+        double [] limits = new double [combinations];
+        int count = 0;
+        double sum = 0;
+    
+        for(int mask=0; mask<combinations; mask++)
+        {
+            double p = 1;
+            for(int i=0; i<n; i++)
+            {
+                p *= (mask & (1 << i)) != 0 ? chances[i] : 1 - chances[i];
+            }
+    
+            // impossible outcomes are left out
+            if(p > 0)
+            {
+                sum += p;
+                masks[count] = mask;
+                limits[count] = sum;
+                count ++;
+            }
+        }
+    
+        // the sum can be slightly below 1 due to rounding
+        limits[count - 1] = Double.MAX_VALUE;
+    
+        dropMasks = Arrays.copyOf(masks, count);
+        dropLimits = Arrays.copyOf(limits, count);
+    }
+    
+    /**
+     * Roll for the drops of this class.
+     *
+     * @return A bit mask of the items which drop, bit i for items[i]
+     */
+    public long roll(FastRandom random)
+    {
+        if(dropLimits != null)
+        {
+            double r = random.nextDouble();
+    
+            // binary search for the first limit above r
+            int low = 0;
+            int high = dropLimits.length - 1;
+            while(low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if(dropLimits[mid] > r)
+                {
+                    high = mid;
+                }
+                else
+                {
+                    low = mid + 1;
+                }
+            }
+    
+            return dropMasks[low];
+        }
+    
+        long mask = 0;
+        for(int i=0; i<chances.length; i++)
+        {
+            if(random.nextDouble() < chances[i])
+            {
+                mask |= 1L << i;
+            }
+        }
+    
+        return mask;
+    }
 }
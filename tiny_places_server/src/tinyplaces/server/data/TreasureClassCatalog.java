@@ -1,11 +1,10 @@
 package tinyplaces.server.data;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,46 +14,137 @@ import java.util.logging.Logger;
  */
 public class TreasureClassCatalog 
 {
-    private static final HashMap<String, TreasureClass> allTresureClasses = new HashMap<String, TreasureClass> (256);
-    
     public static TreasureClass get(String id)
     {
-        return allTresureClasses.get(id);
+        return Catalogs.current().treasureClasses.get(id);
     }
     
-    public static void init(URL resource) throws IOException
+    public static int size()
     {
-        InputStream is = resource.openStream();
-        InputStreamReader sr = new InputStreamReader(is);
-        BufferedReader reader = new BufferedReader(sr);
-
-        String line;
+        return Catalogs.current().treasureClasses.size();
+    }
+    
+    /**
+     * Look up a list of treasure class ids, separated by spaces. Unknown
+     * ids are left out.
+     */
+    static TreasureClass [] resolve(String ids, CatalogTable<TreasureClass> table)
+    {
+        String [] parts = ids.trim().split(" ");
+        ArrayList<TreasureClass> result = new ArrayList<TreasureClass>(parts.length);
         
-        // Read the column headers - not used at the moment
-        line = reader.readLine();
+        for(String id : parts)
+        {
+            TreasureClass treasureClass = table.get(id);
+            if(treasureClass != null)
+            {
+                result.add(treasureClass);
+            }
+            else
+            {
+                Logger.getLogger(TreasureClassCatalog.class.getName()).log(Level.WARNING, "Treasure class {0} not found in catalog.", id);                
+            }
+        }
         
-        while((line = reader.readLine()) != null)
+        return result.toArray(new TreasureClass[result.size()]);
+    }
+    
+    static CatalogTable<TreasureClass> load(List<String []> rows, CatalogTable<BaseItem> items)
+    {
+        CatalogTable<TreasureClass> table = new CatalogTable<TreasureClass> (rows.size());
+        ArrayList<TreasureClass> loaded = new ArrayList<TreasureClass> ();
+        
+        for(String [] parts : rows)
         {
             int i = 0;
-            String [] parts = line.split(",");
             String id = parts[i++];
 
-            TreasureClass treasureClass = get(id);
+            TreasureClass treasureClass = table.get(id);
             
             if(treasureClass == null)
             {
                 treasureClass = new TreasureClass();
                 treasureClass.id = id;
+                table.add(id, treasureClass);
+                loaded.add(treasureClass);
             }
                     
             // chances are percent strings in the input file, normalize to [0..1]
-            treasureClass.chances.add(Integer.parseInt(parts[i++]) * 0.01);
-            treasureClass.items.add(parts[i++]);
-
-            allTresureClasses.put(id, treasureClass);
+            double chance = Integer.parseInt(parts[i++]) * 0.01;
+            String itemId = parts[i++];
+            
+            // resolve the item right here, the item catalog is loaded first
+            BaseItem baseItem = items.get(itemId);
+            
+            if(baseItem != null && treasureClass.items.length == TreasureClass.MAX_ITEMS)
+            {
+                Logger.getLogger(TreasureClassCatalog.class.getName()).log(Level.WARNING, "Treasure class {0} has too many items, {1} left out.", new Object [] {id, itemId});                
+            }
+            else if(baseItem != null)
+            {
+                treasureClass.add(chance, baseItem);
+            }
+            else if(chance > 0)
+            {
+                Logger.getLogger(TreasureClassCatalog.class.getName()).log(Level.WARNING, "BaseItem {0} not found in catalog.", itemId);                
+            }
         }
         
-        reader.close();
-        Logger.getLogger(TreasureClassCatalog.class.getName()).log(Level.INFO, "Loaded {0} treasure classes.", allTresureClasses.size());                        
+        for(TreasureClass treasureClass : loaded)
+        {
+            treasureClass.compile();
+        }
+        
+        Logger.getLogger(TreasureClassCatalog.class.getName()).log(Level.INFO, "Loaded {0} treasure classes.", table.size());                        
+        return table;
     }    
+    
+    
+    static CatalogTable<TreasureClass> read(ByteBuffer in, CatalogTable<BaseItem> items)
+    {
+        int count = in.getInt();
+        CatalogTable<TreasureClass> table = new CatalogTable<TreasureClass> (count);
+        
+        for(int n=0; n<count; n++)
+        {
+            TreasureClass treasureClass = new TreasureClass();
+            treasureClass.id = CatalogSnapshot.getString(in);
+            
+            int size = in.getInt();
+            for(int i=0; i<size; i++)
+            {
+                double chance = in.getDouble();
+                BaseItem baseItem = items.get(CatalogSnapshot.getString(in));
+                
+                // the snapshot only holds items which were found on load
+                if(baseItem != null)
+                {
+                    treasureClass.add(chance, baseItem);
+                }
+            }
+            
+            treasureClass.compile();
+            table.add(treasureClass.id, treasureClass);
+        }
+        
+        return table;
+    }
+    
+    
+    static void write(CatalogTable<TreasureClass> table, DataOutputStream out) throws IOException
+    {
+        out.writeInt(table.size());
+        
+        for(TreasureClass treasureClass : table.values())
+        {
+            CatalogSnapshot.putString(out, treasureClass.id);
+            out.writeInt(treasureClass.items.length);
+            
+            for(int i=0; i<treasureClass.items.length; i++)
+            {
+                out.writeDouble(treasureClass.chances[i]);
+                CatalogSnapshot.putString(out, treasureClass.items[i].id);
+            }
+        }
+    }
 }
@@ -1,16 +1,17 @@
 package tinyplaces.server.isomap;
 
 import java.awt.Point;
-import java.awt.Rectangle;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import tinyplaces.server.data.Catalogs;
 import tinyplaces.server.data.Item;
+import tinyplaces.server.data.Spell;
+import tinyplaces.server.data.SpellCatalog;
 
 /**
  * Client representation on server side.
@@ -19,14 +20,59 @@ import tinyplaces.server.data.Item;
  */
 public class Client 
 {
-    private Room currentRoom;
+    // Area of interest, half width and half height of the view rectangle
+    // around the player avatar. Events outside are not sent to the client.
+    public static final int VIEW_RANGE_X = 800;
+    public static final int VIEW_RANGE_Y = 600;
+    
+    /** Number of equipment slots, numbered from Item.IN_FIRST_SLOT */
+    public static final int SLOT_COUNT = 5;
+    
+    // set by the command thread, read by the owner thread of the rooms
+    private volatile Room currentRoom;
 
     // the player avatar
     public Mob mob;
     
-    private ArrayList<Item> equipment = new ArrayList<Item>(64);
+    // all items of the player by id, and the items in the equipment slots
+    private final IntMap <Item> items = new IntMap<Item>(64);
+    private final Item [] slots = new Item [Item.IN_FIRST_SLOT + SLOT_COUNT];
+    
+    // taken cells of the inventory. Clients may drop items onto each other,
+    // then the grid is rebuilt whenever an item leaves the inventory.
+    private final InventoryGrid inventory = new InventoryGrid();
+    private boolean inventoryOverlaps;
+    
     public final Stat [] stats = new Stat[6];
     
+    // ids of the layer 3 mobs and map items the client was told about
+    private final IntMap <Boolean> knownMobs = new IntMap<Boolean>(256);
+    
+    // room version up to which the client's area of interest was checked,
+    // see CommandWorker.updateInterest() and sendDeltas()
+    public int scanVersion;
+    
+    // Delta synchronisation: instead of ADDM, UPDM, DELM and MOVE commands
+    // the client gets one DELT command per tick with all changed mobs.
+    // The epoch counts the rooms the client was synchronised with, the
+    // versions it acknowledges are only valid for the current epoch.
+    // Except deltaSync, these are only used by the owner thread of the rooms.
+    public volatile boolean deltaSync;
+    public int syncEpoch;
+    public int ackedVersion;
+    public Room deltaRoom;
+    
+    // the epoch in which the client got all props of the room, and the
+    // version they were sent with. Later only prop changes are sent.
+    public int propsEpoch;
+    public int propsVersion;
+    
+    // the spell of the last FIRE command, looked up again if the player
+    // picks another spell or the catalogs were reloaded
+    private String spellId;
+    private Spell spell;
+    private int spellGeneration;
+    
     public final SocketChannel socket;
     public String displayName;
     
@@ -52,57 +98,169 @@ public class Client
         this.currentRoom = room;
     }
     
-    private Item intersectsAnyEquipped(Item item)
+    /**
+     * @return The catalog spell with the given id, null if there is none
+     */
+    public Spell getSpell(String id)
     {
-        Rectangle itemRect = 
-                new Rectangle(item.position.x, item.position.y, 
-                              item.baseItem.width, item.baseItem.height);
-
-        for(Item equipped : equipment)
+        int generation = Catalogs.getGeneration();
+        
+        if(generation != spellGeneration || !id.equals(spellId))
         {
-            Rectangle equippedRect = 
-                new Rectangle(equipped.position.x, equipped.position.y, 
-                              equipped.baseItem.width, equipped.baseItem.height);
+            spell = SpellCatalog.get(id);
+            spellId = id;
+            spellGeneration = generation;
+        }
+        
+        return spell;
+    }
+    
+    /**
+     * Check if a map position is in the area of interest of this client.
+     * Clients without an avatar (editors) can see everything.
+     */
+    public boolean canSee(int x, int y)
+    {
+        if(mob == null)
+        {
+            return true;
+        }
+        
+        // the avatar might be under way
+        if(currentRoom != null)
+        {
+            currentRoom.locate(mob);
+        }
+        
+        return Math.abs(x - mob.x) <= VIEW_RANGE_X && 
+               Math.abs(y - mob.y) <= VIEW_RANGE_Y;
+    }
+    
+    
+    public boolean knowsMob(int id)
+    {
+        return knownMobs.containsKey(id);
+    }
+    
+    
+    public void addKnownMob(int id)
+    {
+        knownMobs.put(id, Boolean.TRUE);
+    }
 
-            if(equippedRect.intersects(itemRect))
+    
+    public boolean removeKnownMob(int id)
+    {
+        return knownMobs.remove(id) != null;
+    }
+    
+    
+    public void clearKnownMobs()
+    {
+        knownMobs.clear();
+        scanVersion = 0;
+    }
+    
+    
+    /**
+     * Find an inventory item which covers part of the given area.
+     * @param ignore An item to leave out, may be null
+     */
+    private Item findInventoryItem(int x, int y, int w, int h, Item ignore)
+    {
+        for(int i=0; i<items.capacity(); i++)
+        {
+            Item other = items.valueAt(i);
+            if(other != null && other != ignore && other.where == Item.IN_INVENTORY &&
+               other.position.x < x + w && x < other.position.x + other.baseItem.width &&
+               other.position.y < y + h && y < other.position.y + other.baseItem.height)
             {
-                return equipped;
+                return other;
             }                
         }
         
         return null;
     }
     
+    
+    private void placeInInventory(Item item)
+    {
+        int w = item.baseItem.width;
+        int h = item.baseItem.height;
+        
+        if(!inventory.fits(item.position.x, item.position.y, w, h))
+        {
+            inventoryOverlaps = true;
+        }
+        
+        inventory.set(item.position.x, item.position.y, w, h);
+    }
+    
+    
+    private void removeFromInventory(Item item)
+    {
+        if(inventoryOverlaps)
+        {
+            // cells might be shared with other items
+            inventory.clearAll();
+            inventoryOverlaps = false;
+            
+            for(int i=0; i<items.capacity(); i++)
+            {
+                Item other = items.valueAt(i);
+                if(other != null && other != item && other.where == Item.IN_INVENTORY)
+                {
+                    placeInInventory(other);
+                }
+            }
+        }
+        else
+        {
+            inventory.clear(item.position.x, item.position.y, item.baseItem.width, item.baseItem.height);
+        }
+    }
+    
+    
     /**
      * Adds an item to the inventory or one of the equipment slots.
      * If there is an item that obstructs the operation, the obstructing item
      * will be returned.
      * @param item The item to add
      * @return null or the item that blocked the operation.
+     * @throws IllegalArgumentException If the item is neither for a slot
+     * nor fully inside the inventory grid
      */
     public Item addItem(Item item)
     {
-        if(item.where >= 0)
+        if(isSlot(item.where))
         {
-            // item for a slot
-            for(Item equipped : equipment)
+            Item equipped = slots[item.where];
+            if(equipped != null)
             {
-                if(equipped.where == item.where)
-                {
-                    return equipped;
-                }
-                else
-                {
-                    equipment.add(item);
-                    return null; // this means ok
-                }
+                return equipped;
             }
+            
+            slots[item.where] = item;
+            items.put(item.id, item);
         }
         else if(item.where == Item.IN_INVENTORY)
         {
-            if(intersectsAnyEquipped(item) == null)
+            int w = item.baseItem.width;
+            int h = item.baseItem.height;
+            
+            if(!InventoryGrid.inside(item.position.x, item.position.y, w, h))
             {
-                equipment.add(item);
+                throw new IllegalArgumentException("Item " + item.id + " is not inside the inventory: " + item.position.x + ", " + item.position.y);
+            }
+            
+            if(inventory.fits(item.position.x, item.position.y, w, h))
+            {
+                items.put(item.id, item);
+                inventory.set(item.position.x, item.position.y, w, h);
+            }
+            else
+            {
+                return findInventoryItem(item.position.x, item.position.y, w, h, null);
             }
         }
         else
@@ -121,18 +279,15 @@ public class Client
      */
     public Point findSuitableLocation(Item item)
     {
-        for(int y = 0; y < 6; y++)
+        Point location = new Point();
+        
+        if(inventory.find(item.baseItem.width, item.baseItem.height, location))
         {
-            for(int x = 0; x < 32; x++)
-            {
-                item.position.x = x;
-                item.position.y = y;
-                if(intersectsAnyEquipped(item) == null)
-                {
-                    return new Point(x, y);
-                }
-            }
+            item.position.x = location.x;
+            item.position.y = location.y;
+            return location;
         }
+        
         return null;
     }
 
@@ -171,17 +326,99 @@ public class Client
     }
 
     
-    public void updateItem(int id, int where, int x, int y) 
+    /**
+     * Move an item of the player to another slot or inventory position.
+     * Inventory positions must be fully inside the grid and must not
+     * overlap other items.
+     * 
+     * @return null, the item in the target slot or area which blocked the
+     * move, or the item itself if the target is not allowed
+     */
+    public Item updateItem(int id, int where, int x, int y) 
     {
-        for(Item item : equipment)
+        Item item = items.get(id);
+        
+        if(item == null)
         {
-            if(item.id == id)
+            Logger.getLogger(Client.class.getName()).log(Level.WARNING, "Player {0} has no item with id={1}", new Object [] {displayName, id});
+            return null;
+        }
+        
+        if(!isSlot(where) && where != Item.IN_INVENTORY)
+        {
+            Logger.getLogger(Client.class.getName()).log(Level.WARNING, "Illegal target for item {0}: {1}", new Object [] {id, where});
+            return item;
+        }
+        
+        if(isSlot(where))
+        {
+            if(slots[where] != null && slots[where] != item)
             {
-                item.where = where;
-                item.position.x = x;
-                item.position.y = y;
+                return slots[where];
             }
         }
+        else
+        {
+            int w = item.baseItem.width;
+            int h = item.baseItem.height;
+            
+            if(!InventoryGrid.inside(x, y, w, h))
+            {
+                Logger.getLogger(Client.class.getName()).log(Level.WARNING, "Item {0} would not be inside the inventory: {1}, {2}", new Object [] {id, x, y});
+                return item;
+            }
+            
+            Item other = findInventoryItem(x, y, w, h, item);
+            if(other != null)
+            {
+                return other;
+            }
+        }
+        
+        if(isSlot(item.where))
+        {
+            slots[item.where] = null;
+        }
+        else if(item.where == Item.IN_INVENTORY)
+        {
+            removeFromInventory(item);
+        }
+
+        item.where = where;
+        item.position.x = x;
+        item.position.y = y;
+
+        if(isSlot(where))
+        {
+            slots[where] = item;
+        }
+        else
+        {
+            placeInInventory(item);
+        }
+        
+        return null;
+    }
+    
+    
+    public Item getItem(int id)
+    {
+        return items.get(id);
+    }
+    
+    
+    /**
+     * @return The item in an equipment slot, or null if the slot is empty
+     */
+    public Item getEquipped(int slot)
+    {
+        return isSlot(slot) ? slots[slot] : null;
+    }
+    
+    
+    private boolean isSlot(int where)
+    {
+        return where >= Item.IN_FIRST_SLOT && where < slots.length;
     }
 
 
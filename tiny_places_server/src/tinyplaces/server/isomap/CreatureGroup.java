@@ -14,6 +14,9 @@ public class CreatureGroup
     int cx;
     int cy;
     
+    // AI level of detail, see Room.aiCall()
+    int aiLevel = Room.AI_FULL;
+    
     CreatureGroup(ArrayList<Mob> mobs, int cx, int cy)
     {
         creatures.addAll(mobs);
@@ -0,0 +1,295 @@
+package tinyplaces.server.isomap;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import tinyplaces.server.data.AtomicFiles;
+import tinyplaces.server.data.Rgba;
+
+/**
+ * Append-only log of the prop edits of a room, kept next to the map
+ * file as maps/name.journal. Each edit is one line:
+ * <pre>
+ *   A,layer,frames,phases,tile,x,y,scale,rgba    prop added
+ *   D,layer,tile,x,y,scale,rgba                  prop deleted
+ *   U,layer,tile,x,y,scale,rgba,tile,x,y,scale,rgba   prop changed, old and new values
+ * </pre>
+ * Props have no persistent ids, so they are found by their values. Props
+ * with the same values can't be told apart, but then it doesn't matter
+ * which one is changed.
+ *
+ * The first line holds the checksum of the map the edits apply to. Once
+ * the edits went into a new map file, the old journal doesn't match any
+ * more and is ignored, even if the server stopped before it was reset.
+ * The file is only written once the map is edited, maps which are just
+ * played on get no journal.
+ *
+ * The file methods are called by the map saver thread only.
+ */
+class EditJournal
+{
+    private final File file;
+
+    // set by replay() if the file is missing, outdated or has bad lines
+    private boolean damaged;
+
+    // checksum of the map the edits apply to
+    private long checksum;
+
+    // false until the file holds the header for the checksum
+    private boolean started;
+
+
+    EditJournal(File file)
+    {
+        this.file = file;
+    }
+
+
+    static String add(int layer, Mob mob)
+    {
+        return "A," + layer + "," + mob.frames + "," + mob.phases + "," + fields(mob) + "\n";
+    }
+
+
+    static String delete(int layer, Mob mob)
+    {
+        return "D," + layer + "," + fields(mob) + "\n";
+    }
+
+
+    /**
+     * @param before The values of the prop before the change, see fields()
+     */
+    static String update(int layer, String before, Mob mob)
+    {
+        return "U," + layer + "," + before + "," + fields(mob) + "\n";
+    }
+
+
+    /**
+     * @return The values which identify a prop, as used in the journal
+     */
+    static String fields(Mob mob)
+    {
+        return mob.tile + "," + mob.x + "," + mob.y + "," +
+               mob.scale + "," + Integer.toHexString(mob.color.rgba);
+    }
+
+
+    /**
+     * Apply the edits to a room which was just made from its map file.
+     *
+     * @param room The room
+     * @param checksum Checksum of the map the room was made from
+     * @return The number of edits which were applied
+     */
+    int replay(Room room, long checksum) throws IOException
+    {
+        this.checksum = checksum;
+        damaged = true;
+        started = false;
+
+        if(!file.isFile())
+        {
+            return 0;
+        }
+
+        byte [] data = new byte [(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(data);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // only lines with their newline are complete, the last one
+        // could have been cut short by a crash
+        String [] lines = new String(data).split("\n", -1);
+
+        if(lines.length < 2 || !lines[0].equals(header(checksum)))
+        {
+            // the edits are in the map file already
+            return 0;
+        }
+
+        String tail = lines[lines.length - 1];
+        damaged = tail.length() > 0;
+        if(damaged)
+        {
+            Logger.getLogger(EditJournal.class.getName()).log(Level.WARNING, "Skipping incomplete journal entry in {0}: {1}", new Object [] {file, tail});
+        }
+
+        int count = 0;
+
+        for(int i=1; i<lines.length-1; i++)
+        {
+            String line = lines[i];
+
+            try
+            {
+                if(apply(room, line.split(",")))
+                {
+                    count ++;
+                    continue;
+                }
+            }
+            catch(RuntimeException ex)
+            {
+                // fall through and report the line
+            }
+
+            damaged = true;
+            Logger.getLogger(EditJournal.class.getName()).log(Level.WARNING, "Skipping journal entry in {0}: {1}", new Object [] {file, line});
+        }
+
+        started = !damaged;
+        return count;
+    }
+
+
+    /**
+     * @return True if the last replay() found no usable journal for the
+     * map, or lines it couldn't apply. Such a journal is reset before new
+     * edits are appended.
+     */
+    boolean isDamaged()
+    {
+        return damaged;
+    }
+
+
+    private static boolean apply(Room room, String [] parts)
+    {
+        int layer = Integer.parseInt(parts[1]);
+
+        if("A".equals(parts[0]))
+        {
+            room.makeMob(layer,
+                         Integer.parseInt(parts[4]),
+                         Integer.parseInt(parts[2]),
+                         Integer.parseInt(parts[3]),
+                         Integer.parseInt(parts[5]),
+                         Integer.parseInt(parts[6]),
+                         Float.parseFloat(parts[7]),
+                         Rgba.valueOf((int)Long.parseLong(parts[8], 16)),
+                         Mob.TYPE_PROP);
+            return true;
+        }
+
+        int id = find(room, layer, parts, 2);
+        if(id == -1)
+        {
+            return false;
+        }
+
+        if("D".equals(parts[0]))
+        {
+            room.removeMob(layer, id);
+            return true;
+        }
+
+        if("U".equals(parts[0]))
+        {
+            Mob mob = room.getMob(layer, id);
+            mob.tile = Integer.parseInt(parts[7]);
+            mob.x = Integer.parseInt(parts[8]);
+            mob.y = Integer.parseInt(parts[9]);
+            mob.scale = Float.parseFloat(parts[10]);
+            mob.color = Rgba.valueOf((int)Long.parseLong(parts[11], 16));
+            room.markChanged(layer, mob);
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * @return The id of a prop with the given values, -1 if there is none
+     */
+    private static int find(Room room, int layer, String [] parts, int start)
+    {
+        String key = parts[start] + "," + parts[start + 1] + "," + parts[start + 2] + "," +
+                     parts[start + 3] + "," + parts[start + 4];
+
+        MobLayer lmap = room.getLayerMap(layer);
+        for(int i=0; i<lmap.capacity(); i++)
+        {
+            Mob mob = lmap.valueAt(i);
+            if(mob != null && mob.type == Mob.TYPE_PROP && key.equals(fields(mob)))
+            {
+                return mob.id;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Append an edit and force it to disk. The first edit after replay()
+     * starts a new journal if there was no usable one.
+     */
+    void append(String entry) throws IOException
+    {
+        if(!started)
+        {
+            reset(checksum);
+        }
+
+        FileOutputStream out = new FileOutputStream(file, true);
+
+        try
+        {
+            out.write(entry.getBytes());
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Start an empty journal for a new map file. The header goes to a
+     * temporary file which is then moved over the journal, so a crash
+     * leaves either the old or the new journal behind.
+     *
+     * @param checksum Checksum of the new map
+     */
+    void reset(long checksum) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+
+        try
+        {
+            out.write((header(checksum) + "\n").getBytes());
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        AtomicFiles.replace(temp, file);
+
+        this.checksum = checksum;
+        started = true;
+    }
+
+
+    private static String header(long checksum)
+    {
+        return "J," + Long.toHexString(checksum);
+    }
+}
@@ -0,0 +1,236 @@
+package tinyplaces.server.isomap;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with primitive int keys. Lookups don't box
+ * the keys, and iteration works on the slots directly, so it doesn't
+ * allocate either:
+ * 
+ * <pre>
+ * for(int i=0; i&lt;map.capacity(); i++)
+ * {
+ *     Mob mob = map.valueAt(i);
+ *     if(mob != null) ...
+ * }
+ * </pre>
+ * 
+ * Null values are not allowed, a null value marks a free slot. The map
+ * must not be changed while iterating over it.
+ * 
+ * @param <V> Value type
+ */
+public class IntMap <V>
+{
+    private int [] keys;
+    private Object [] values;
+    private int size;
+    private int mask;
+    
+    
+    public IntMap()
+    {
+        this(16);
+    }
+    
+    
+    public IntMap(int expectedSize)
+    {
+        int capacity = 8;
+        while(capacity < expectedSize * 2)
+        {
+            capacity <<= 1;
+        }
+        
+        keys = new int [capacity];
+        values = new Object [capacity];
+        mask = capacity - 1;
+    }
+    
+    
+    public int size()
+    {
+        return size;
+    }
+    
+    
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+    
+    
+    public V get(int key)
+    {
+        int slot = find(key);
+        return slot < 0 ? null : valueAt(slot);
+    }
+    
+    
+    public boolean containsKey(int key)
+    {
+        return find(key) >= 0;
+    }
+    
+    
+    /**
+     * @return The former value for this key, or null
+     */
+    public V put(int key, V value)
+    {
+        if(value == null)
+        {
+            throw new IllegalArgumentException("IntMap does not allow null values.");
+        }
+        
+        int slot = hash(key) & mask;
+        
+        while(values[slot] != null)
+        {
+            if(keys[slot] == key)
+            {
+                V old = valueAt(slot);
+                values[slot] = value;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        keys[slot] = key;
+        values[slot] = value;
+        size ++;
+        
+        // keep the load factor at 0.5 or below
+        if(size * 2 > values.length)
+        {
+            rehash(values.length * 2);
+        }
+        
+        return null;
+    }
+    
+    
+    /**
+     * @return The removed value, or null if there was no such key
+     */
+    public V remove(int key)
+    {
+        int slot = find(key);
+        
+        if(slot < 0)
+        {
+            return null;
+        }
+        
+        V old = valueAt(slot);
+        
+        // shift back the following entries of the probe sequence,
+        // this way no deleted markers are needed
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        
+        while(values[next] != null)
+        {
+            int home = hash(keys[next]) & mask;
+            
+            // can the entry at next move into the gap?
+            if(((next - home) & mask) >= ((next - gap) & mask))
+            {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        
+        values[gap] = null;
+        size --;
+        
+        return old;
+    }
+    
+    
+    public void clear()
+    {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    
+    /**
+     * @return The number of slots, for iteration
+     */
+    public int capacity()
+    {
+        return values.length;
+    }
+    
+    
+    /**
+     * @return The key in this slot. Only valid if valueAt(slot) is not null.
+     */
+    public int keyAt(int slot)
+    {
+        return keys[slot];
+    }
+    
+    
+    /**
+     * @return The value in this slot, or null if the slot is free.
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot)
+    {
+        return (V)values[slot];
+    }
+    
+    
+    private int find(int key)
+    {
+        int slot = hash(key) & mask;
+        
+        while(values[slot] != null)
+        {
+            if(keys[slot] == key)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        return -1;
+    }
+    
+    
+    private void rehash(int capacity)
+    {
+        int [] oldKeys = keys;
+        Object [] oldValues = values;
+        
+        keys = new int [capacity];
+        values = new Object [capacity];
+        mask = capacity - 1;
+        
+        for(int i=0; i<oldValues.length; i++)
+        {
+            if(oldValues[i] != null)
+            {
+                int slot = hash(oldKeys[i]) & mask;
+                while(values[slot] != null)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+    
+    
+    private static int hash(int key)
+    {
+        // spread sequential ids over the table
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
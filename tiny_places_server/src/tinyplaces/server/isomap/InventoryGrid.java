@@ -0,0 +1,141 @@
+package tinyplaces.server.isomap;
+
+import java.awt.Point;
+
+/**
+ * Occupancy bitmap of the inventory grid of a player. Each row of cells
+ * is one int, bit x set means cell x is taken, so testing a w*h area
+ * takes h bit operations.
+ */
+class InventoryGrid
+{
+    static final int WIDTH = 32;
+    static final int HEIGHT = 6;
+
+    private final int [] rows = new int [HEIGHT];
+
+
+    /**
+     * @return True if the area is not empty and fully inside the grid
+     */
+    static boolean inside(int x, int y, int w, int h)
+    {
+        return x >= 0 && y >= 0 && w >= 1 && h >= 1 && x + w <= WIDTH && y + h <= HEIGHT;
+    }
+
+
+    /**
+     * @return True if the area is inside the grid and all its cells are free
+     */
+    boolean fits(int x, int y, int w, int h)
+    {
+        if(!inside(x, y, w, h))
+        {
+            return false;
+        }
+
+        int mask = mask(x, w);
+        for(int row = y; row < y + h; row++)
+        {
+            if((rows[row] & mask) != 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Mark the cells of an area as taken. Parts outside the grid are ignored.
+     */
+    void set(int x, int y, int w, int h)
+    {
+        int mask = clippedMask(x, w);
+        for(int row = Math.max(y, 0); row < Math.min(y + h, HEIGHT); row++)
+        {
+            rows[row] |= mask;
+        }
+    }
+
+
+    /**
+     * Mark the cells of an area as free. Parts outside the grid are ignored.
+     */
+    void clear(int x, int y, int w, int h)
+    {
+        int mask = clippedMask(x, w);
+        for(int row = Math.max(y, 0); row < Math.min(y + h, HEIGHT); row++)
+        {
+            rows[row] &= ~mask;
+        }
+    }
+
+
+    void clearAll()
+    {
+        for(int row = 0; row < HEIGHT; row++)
+        {
+            rows[row] = 0;
+        }
+    }
+
+
+    /**
+     * Find the first free area of the given size, row by row from the top
+     * left corner.
+     *
+     * @param result Receives the top left cell of the area
+     * @return True if a free area was found
+     */
+    boolean find(int w, int h, Point result)
+    {
+        if(w < 1 || h < 1 || w > WIDTH || h > HEIGHT)
+        {
+            return false;
+        }
+
+        for(int y = 0; y + h <= HEIGHT; y++)
+        {
+            int taken = 0;
+            for(int row = y; row < y + h; row++)
+            {
+                taken |= rows[row];
+            }
+
+            // bit x stays set if cells x to x+w-1 are all free. Cells past
+            // the right edge shift in as zeros, so they count as taken.
+            int free = ~taken;
+            int starts = free;
+            for(int i = 1; i < w; i++)
+            {
+                starts &= free >>> i;
+            }
+
+            if(starts != 0)
+            {
+                result.x = Integer.numberOfTrailingZeros(starts);
+                result.y = y;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private static int mask(int x, int w)
+    {
+        return (int)(((1L << w) - 1) << x);
+    }
+
+
+    private static int clippedMask(int x, int w)
+    {
+        int left = Math.max(x, 0);
+        int right = Math.min(x + w, WIDTH);
+
+        return right > left ? mask(left, right - left) : 0;
+    }
+}
@@ -0,0 +1,492 @@
+package tinyplaces.server.isomap;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import tinyplaces.server.data.AtomicFiles;
+import tinyplaces.server.data.Rgba;
+
+/**
+ * The parsed content of a map file. Templates are cached, so another
+ * instance of a map is made from memory without touching the file.
+ *
+ * Maps are read from maps/name.map (binary, v11) or maps/name.txt
+ * (text, v10), whichever is newer. The binary layout, big endian:
+ * <pre>
+ *   int magic, int version, int length + UTF-8 name, int length + UTF-8 backdrop
+ *   int count, per prop: int layer, tile, frames, phases, x, y, float scale, int rgba
+ * </pre>
+ *
+ * Run this class with a directory argument (default "maps") to convert
+ * all v10 maps in it to v11.
+ */
+public class MapTemplate
+{
+    private static final int MAGIC = 0x54504D50; // "TPMP"
+    private static final int VERSION = 11;
+
+    // bytes per prop in the binary format
+    private static final int PROP_SIZE = 32;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // parsed templates by file name, with the file they were read from
+    private static final ConcurrentHashMap<String, MapTemplate> cache = new ConcurrentHashMap<String, MapTemplate>();
+
+    public final String name;
+    public final String backdrop;
+
+    private final int count;
+    private final int [] layers;
+    private final int [] tiles;
+    private final int [] frames;
+    private final int [] phases;
+    private final int [] xs;
+    private final int [] ys;
+    private final float [] scales;
+    private final int [] colors;
+
+    // map file name without extension, null for snapshots
+    private String filename;
+
+    // source file and its state when it was read, to notice changes
+    private File source;
+    private long sourceTime;
+    private long sourceLength;
+
+
+    private MapTemplate(String name, String backdrop, int count)
+    {
+        this.name = name;
+        this.backdrop = backdrop;
+        this.count = count;
+
+        layers = new int [count];
+        tiles = new int [count];
+        frames = new int [count];
+        phases = new int [count];
+        xs = new int [count];
+        ys = new int [count];
+        scales = new float [count];
+        colors = new int [count];
+    }
+
+
+    /**
+     * Get the template of a map. The files are only read if the map wasn't
+     * loaded before or has changed since.
+     *
+     * @param filename The map file name without extension
+     */
+    public static MapTemplate get(String filename) throws IOException
+    {
+        File file = findFile(filename);
+        MapTemplate template = cache.get(filename);
+
+        if(template == null || !template.isFrom(file))
+        {
+            template = read(file);
+            template.filename = filename;
+            template.source = file;
+            template.sourceTime = file.lastModified();
+            template.sourceLength = file.length();
+            cache.put(filename, template);
+        }
+
+        return template;
+    }
+
+
+    /**
+     * Create a new room with the props of this map, and the edits which
+     * were made to the map since it was last written.
+     */
+    public Room createRoom()
+    {
+        Room room = new Room(name, backdrop);
+
+        for(int i=0; i<count; i++)
+        {
+            room.makeMob(layers[i], tiles[i], frames[i], phases[i], xs[i], ys[i],
+                         scales[i], Rgba.valueOf(colors[i]), Mob.TYPE_PROP);
+        }
+
+        if(filename != null)
+        {
+            room.openJournal(filename, checksum());
+        }
+
+        return room;
+    }
+
+
+    /**
+     * Checksum of the map content which is kept in both file formats, so a
+     * map has the same checksum as text and binary file.
+     */
+    long checksum()
+    {
+        long sum = (name.hashCode() * 31L + backdrop.hashCode()) * 31L + count;
+
+        for(int i=0; i<count; i++)
+        {
+            sum = sum * 1000003L + layers[i];
+            sum = sum * 1000003L + tiles[i];
+            sum = sum * 1000003L + xs[i];
+            sum = sum * 1000003L + ys[i];
+            sum = sum * 1000003L + Float.floatToIntBits(scales[i]);
+            sum = sum * 1000003L + colors[i];
+        }
+
+        return sum;
+    }
+
+
+    public int size()
+    {
+        return count;
+    }
+
+
+    private boolean isFrom(File file)
+    {
+        return file.equals(source) &&
+               file.lastModified() == sourceTime &&
+               file.length() == sourceLength;
+    }
+
+
+    private static File findFile(String filename)
+    {
+        File text = new File("maps", filename + ".txt");
+        File binary = new File("maps", filename + ".map");
+
+        // the editor saves text maps, so a newer text file wins
+        if(binary.isFile() && (!text.isFile() || binary.lastModified() >= text.lastModified()))
+        {
+            return binary;
+        }
+
+        return text;
+    }
+
+
+    private static MapTemplate read(File file) throws IOException
+    {
+        if(file.getName().endsWith(".map"))
+        {
+            return readBinary(file);
+        }
+
+        return readText(file);
+    }
+
+
+    /**
+     * Read a map in the v10 text format.
+     */
+    static MapTemplate readText(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+
+        try
+        {
+            String version = reader.readLine();
+            String roomname = reader.readLine();
+            String backdrop = reader.readLine();
+
+            String [][] lines = new String [64][];
+            int count = 0;
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                if(line.length() == 0)
+                {
+                    continue;
+                }
+                if(count == lines.length)
+                {
+                    lines = Arrays.copyOf(lines, count * 2);
+                }
+                lines[count ++] = line.split(",");
+            }
+
+            MapTemplate template = new MapTemplate(roomname, backdrop, count);
+
+            for(int i=0; i<count; i++)
+            {
+                String [] parts = lines[i];
+
+                template.layers[i] = Integer.parseInt(parts[0]);
+                template.tiles[i] = Integer.parseInt(parts[1]);
+                template.frames[i] = 1;
+                template.phases[i] = 2;
+                template.xs[i] = Integer.parseInt(parts[2]);
+                template.ys[i] = Integer.parseInt(parts[3]);
+                template.scales[i] = Float.parseFloat(parts[4]);
+                template.colors[i] = Rgba.parse(parts[5]).rgba;
+            }
+
+            return template;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+
+    /**
+     * Read a map in the v11 binary format.
+     */
+    static MapTemplate readBinary(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            {
+                throw new IOException("Not a v11 map file: " + file);
+            }
+
+            String roomname = readString(buffer, file);
+            String backdrop = readString(buffer, file);
+            int count = buffer.getInt();
+
+            // check the sizes before allocating, a damaged file must not
+            // end in an OutOfMemoryError
+            if(count < 0 || count > buffer.remaining() / PROP_SIZE)
+            {
+                throw new IOException("Damaged map file: " + file + ", bad prop count " + count);
+            }
+
+            MapTemplate template = new MapTemplate(roomname, backdrop, count);
+
+            for(int i=0; i<count; i++)
+            {
+                template.layers[i] = buffer.getInt();
+                template.tiles[i] = buffer.getInt();
+                template.frames[i] = buffer.getInt();
+                template.phases[i] = buffer.getInt();
+                template.xs[i] = buffer.getInt();
+                template.ys[i] = buffer.getInt();
+                template.scales[i] = buffer.getFloat();
+                template.colors[i] = buffer.getInt();
+            }
+
+            return template;
+        }
+        catch(RuntimeException ex)
+        {
+            // buffer underflow and the like
+            throw new IOException("Damaged map file: " + file, ex);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private static String readString(MappedByteBuffer buffer, File file) throws IOException
+    {
+        int length = buffer.getInt();
+        if(length < 0 || length > buffer.remaining())
+        {
+            throw new IOException("Damaged map file: " + file + ", bad string length " + length);
+        }
+
+        byte [] bytes = new byte [length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    /**
+     * Copy the props of a room. Must be called by the owner thread of the
+     * room, the copy can then be used by any thread.
+     */
+    static MapTemplate snapshot(Room room)
+    {
+        int count = 0;
+        for(int layer = 1; layer < 6; layer += 2)
+        {
+            MobLayer lmap = room.getLayerMap(layer);
+            for(int i=0; i<lmap.capacity(); i++)
+            {
+                Mob mob = lmap.valueAt(i);
+                if(mob != null && mob.type == Mob.TYPE_PROP)
+                {
+                    count ++;
+                }
+            }
+        }
+
+        MapTemplate template = new MapTemplate(room.name, room.backdrop, count);
+        int n = 0;
+
+        for(int layer = 1; layer < 6; layer += 2)
+        {
+            MobLayer lmap = room.getLayerMap(layer);
+            for(int i=0; i<lmap.capacity(); i++)
+            {
+                Mob mob = lmap.valueAt(i);
+                if(mob != null && mob.type == Mob.TYPE_PROP)
+                {
+                    template.layers[n] = layer;
+                    template.tiles[n] = mob.tile;
+                    template.frames[n] = mob.frames;
+                    template.phases[n] = mob.phases;
+                    template.xs[n] = mob.x;
+                    template.ys[n] = mob.y;
+                    template.scales[n] = mob.scale;
+                    template.colors[n] = mob.color.rgba;
+                    n ++;
+                }
+            }
+        }
+
+        return template;
+    }
+
+
+    /**
+     * Write this map in the v10 text format. The text goes to a temporary
+     * file, which is forced to disk and then moved over the map, so a
+     * crash leaves either the old or the new map behind.
+     */
+    void writeText(File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+
+        try
+        {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(fos));
+
+            writer.write("v10\n");
+            writer.write(name + "\n");
+            writer.write(backdrop + "\n");
+
+            for(int i=0; i<count; i++)
+            {
+                // ids are not saved but set freshly on loading the map
+                writer.write(layers[i] + "," +
+                             tiles[i] + "," +
+                             xs[i] + "," +
+                             ys[i] + "," +
+                             scales[i] + "," +
+                             Rgba.valueOf(colors[i]) + "\n");
+            }
+
+            writer.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        AtomicFiles.replace(temp, file);
+    }
+
+
+    /**
+     * Write this map in the v11 binary format.
+     */
+    void writeBinary(File file) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, name);
+            writeString(out, backdrop);
+            out.writeInt(count);
+
+            for(int i=0; i<count; i++)
+            {
+                out.writeInt(layers[i]);
+                out.writeInt(tiles[i]);
+                out.writeInt(frames[i]);
+                out.writeInt(phases[i]);
+                out.writeInt(xs[i]);
+                out.writeInt(ys[i]);
+                out.writeFloat(scales[i]);
+                out.writeInt(colors[i]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    private static void writeString(DataOutputStream out, String text) throws IOException
+    {
+        byte [] bytes = text.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    /**
+     * Convert all v10 text maps of a directory to v11.
+     */
+    public static void main(String [] args)
+    {
+        File folder = new File(args.length > 0 ? args[0] : "maps");
+        File [] files = folder.listFiles();
+
+        if(files == null)
+        {
+            System.err.println("Not a directory: " + folder);
+            return;
+        }
+
+        for(File file : files)
+        {
+            String filename = file.getName();
+            if(!filename.endsWith(".txt"))
+            {
+                continue;
+            }
+
+            File target = new File(folder, filename.substring(0, filename.length() - 4) + ".map");
+
+            try
+            {
+                MapTemplate template = readText(file);
+                template.writeBinary(target);
+                System.out.println(file + " -> " + target + ", " + template.size() + " props");
+            }
+            catch(Exception ex)
+            {
+                Logger.getLogger(MapTemplate.class.getName()).log(Level.SEVERE, "Cannot convert " + file, ex);
+            }
+        }
+    }
+}
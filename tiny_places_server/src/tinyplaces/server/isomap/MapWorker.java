@@ -2,86 +2,230 @@ package tinyplaces.server.isomap;
 
 import java.awt.Point;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
-import java.util.SortedMap;
 import tinyplaces.server.data.BaseItem;
 import tinyplaces.server.data.Item;
 import tinyplaces.server.data.Transition;
-import tinyplaces.server.data.TransitionCatalog;
 import tinyplaces.server.isomap.actions.Action;
+import tinyplaces.server.isomap.actions.ActionPool;
 import tinyplaces.server.isomap.actions.Move;
 
 /**
- * Worker thread to process ongoing actions.
+ * Worker thread to process ongoing actions. This thread owns all rooms,
+ * it also runs the commands which other threads post to the rooms.
+ * Rooms are ticked every TICK_TIME while something happens in them,
+ * otherwise the worker sleeps until the next AI wakeup or arrival, or
+ * until a command is posted.
  * 
  * @author hjm
  */
 public class MapWorker implements Runnable 
 {
+    private static final int TICK_TIME = 100;
+    
+    // idle rooms are checked at least this often
+    private static final int MAX_IDLE_TIME = 10000;
+    
+    // reused every tick
+    private final ArrayList <Room> rooms = new ArrayList<Room>(64);
+    private final ArrayList <Move> arrivals = new ArrayList<Move>(64);
+    
     @Override
     public void run() 
     {
+        Room.setOwner(Thread.currentThread());
+        
         long lastTime = System.currentTimeMillis();
+        long nextTime = lastTime + TICK_TIME;
         
         while(true)
         {
-            try
+            long now = System.currentTimeMillis();
+            long wait = nextTime - now;
+            
+            if(wait > 0)
             {
-                Thread.sleep(100);
+                // until the next tick is due, run posted room commands
+                try
+                {
+                    Room.awaitCommands(wait);
+                }
+                catch(InterruptedException iex)
+                {
+                    System.err.println("MapWorker: Interrupt during wait:" + iex);
+                }
+                
+                if(nextTime - lastTime > TICK_TIME)
+                {
+                    // The rooms were idle, so no actions are pending. Bring
+                    // them up to date before the commands add actions, else
+                    // the next tick would age those by the whole idle time.
+                    now = System.currentTimeMillis();
+                    catchUp((int)(now - lastTime));
+                    lastTime = now;
+                }
+                
+                Room.getRoomList(rooms);
+                for(int r=0; r<rooms.size(); r++)
+                {
+                    rooms.get(r).runCommands();
+                }
+                
+                // commands can add actions and creatures
+                nextTime = Math.min(nextTime, planNextTick(lastTime));
             }
-            catch(InterruptedException iex)
+            else
             {
-                System.err.println("MapWorker: Interrupt during wait:" + iex);
+                int dt = (int)(now - lastTime);
+            
+                tick(dt);
+            
+                lastTime = now;
+                nextTime = planNextTick(lastTime);
             }
+        }
+    }
+
+    
+    /**
+     * @param lastTime System time of the last tick
+     * @return System time when the next tick is due.
+     */
+    private long planNextTick(long lastTime)
+    {
+        long next = lastTime + MAX_IDLE_TIME;
+        
+        Room.getRoomList(rooms);
+        for(int r=0; r<rooms.size(); r++)
+        {
+            Room room = rooms.get(r);
             
-            long now = System.currentTimeMillis();
-            int dt = (int)(now - lastTime);
+            if(room.isBusy())
+            {
+                return lastTime + TICK_TIME;
+            }
             
-            HashMap<String, Room> roomsMap = Room.getRooms();
+            next = Math.min(next, room.getNextWakeup(lastTime));
+        }
+        
+        // never tick faster than TICK_TIME
+        return Math.max(next, lastTime + TICK_TIME);
+    }
 
-            // System.err.println("MapWorker: dt=" + dt);
-            // System.err.println("MapWorker: room count:" + rooms.size());
+    /**
+     * Process one time step for all rooms.
+     * @param dt Time since the last tick in milliseconds
+     */
+    void tick(int dt)
+    {
+        // System.err.println("MapWorker: dt=" + dt);
+        // System.err.println("MapWorker: room count:" + rooms.size());
 
-            ArrayList <Room> rooms = new ArrayList<Room>(roomsMap.values());
-                    
-            for(Room room : rooms)
-            {
-                List <Action> actions = room.getActions();
-                List <Action> killList = new ArrayList<Action>();
+        Room.getRoomList(rooms);
+                
+        for(int r=0; r<rooms.size(); r++)
+        {
+            Room room = rooms.get(r);
+            room.runCommands();
+            step(room, dt);
+        }
+    }
 
-                // System.err.println("MapWorker: action count:" + actions.size());
+    
+    /**
+     * Advance all rooms without running their posted commands.
+     * @param dt Time since the last tick in milliseconds
+     */
+    private void catchUp(int dt)
+    {
+        Room.getRoomList(rooms);
                 
-                synchronized(actions)
-                {
-                    for(Action action : actions)
-                    {
-                       action.process(room, dt);
-                       if(action.isDone())
-                       {
-                           killList.add(action);
-                       }
-                    }
-                }
+        for(int r=0; r<rooms.size(); r++)
+        {
+            step(rooms.get(r), dt);
+        }
+    }
 
-                for(Action action : killList)
-                {
-                    processActionResult(room, action);
-                }
+    
+    private void step(Room room, int dt)
+    {
+        List <Action> actions = room.getActions();
+
+        // System.err.println("MapWorker: action count:" + actions.size());
+
+        // moving mobs cost nothing until they arrive
+        room.getMotionTable().advance(dt, room.getChangeVersion(), arrivals);
+
+        processActions(room, actions, dt);
+        processArrivals(room);
+
+        room.aiCall();
+        room.updateInterest();
+        room.sendDeltas();
+    }
+
+    
+    /**
+     * Process all actions, and remove the finished ones. Started moves are
+     * removed too, the motion table hands them back on arrival. Removal
+     * swaps the last action into the gap, so the order of the actions is
+     * not kept.
+     */
+    private void processActions(Room room, List <Action> actions, int dt)
+    {
+        ActionPool pool = room.getActionPool();
+        int i = 0;
+        
+        while(i < actions.size())
+        {
+            Action action = actions.get(i);
+            action.process(room, dt);
+            
+            boolean done = action.isDone();
+            
+            if(done || (action instanceof Move && ((Move)action).isStarted()))
+            {
+                int last = actions.size() - 1;
+                actions.set(i, actions.get(last));
+                actions.remove(last);
                 
-                synchronized(actions)
+                if(done)
                 {
-                    actions.removeAll(killList);
+                    processActionResult(room, action);
+                    pool.release(action);
                 }
-                
-                room.aiCall();
             }
-            
-            lastTime = now;
+            else
+            {
+                i ++;
+            }
         }
     }
 
+    
+    private void processArrivals(Room room)
+    {
+        ActionPool pool = room.getActionPool();
+        
+        // the motion table marked the arrived mobs changed
+        if(!arrivals.isEmpty())
+        {
+            room.noteChange();
+        }
+        
+        for(int i=0; i<arrivals.size(); i++)
+        {
+            Move move = arrivals.get(i);
+            move.arrive(room);
+            processActionResult(room, move);
+            pool.release(move);
+        }
+        
+        arrivals.clear();
+    }
+
+    
     private void processActionResult(Room room, Action action) 
     {
         Mob mob = action.getMob();
@@ -107,41 +251,35 @@ public class MapWorker implements Runnable
 
     private void checkProjectileHit(Room room, Mob mob)
     {
+        if(mob.spell != null && mob.spell.radius > 0)
+        {
+            // area spells go off wherever they land
+            room.handleAreaHit(mob, mob.x, mob.y);
+            return;
+        }
+        
         int radius = 20;
-        SortedMap <Integer, Mob> map = room.findMobsNear(mob.x, mob.y, radius);
+        Mob target = room.findNearestMob(mob.x, mob.y, radius);
         
-        if(map.size() > 0)
+        if(target != null)
         {
-            Integer nearest = map.firstKey();        
-            Mob target = map.get(nearest);
+            System.err.println("MapWorker: projectile hit mob id=" + target.id);
 
-            if(target != null)
+            // for now, don't kill the player ...
+            if(target.type != Mob.TYPE_PLAYER)
             {
-                System.err.println("MapWorker: projectile hit mob id=" + target.id);
-
-                // for now, don't kill the player ...
-                if(target.type != Mob.TYPE_PLAYER)
-                {
-                    room.handleHit(mob, target);
-                }
+                room.handleHit(mob, target);
             }
         }
-        else
-        {
-            System.err.println("MapWorker: projectile hit nothing.");
-        }
     }
 
     
     private void checkPlayerPickup(Room room, Mob mob, Move move) 
     {        
-        SortedMap <Integer, Item> map = room.findItemsNear(mob.x, mob.y, 20);
+        Item item = room.findNearestItem(mob.x, mob.y, 20);
 
-        if(map.size() > 0)
+        if(item != null)
         {       
-            Integer nearest = map.firstKey();
-            Item item = map.get(nearest);
-        
             if(BaseItem.CLASS_POWERUP.equals(item.baseItem.iclass))
             {
                 room.applyPowerup(move.client, item);
@@ -156,23 +294,21 @@ public class MapWorker implements Runnable
     
     private Transition checkTransitions(Room room, Mob mob, Move move) 
     {        
-        List<Transition> transitions = TransitionCatalog.get(room.name);
+        List<Transition> transitions = room.getTransitions();
         
         // System.err.println("room=" + room.name + " has " + transitions);        
-        if(transitions != null)
+        for(int i=0; i<transitions.size(); i++)
         {
-            for(Transition t : transitions)
-            {
-                int dx = move.x - t.fromX;
-                int dy = move.y - t.fromY;
-                int d2 = dx * dx + dy * dy;
+            Transition t = transitions.get(i);
+            int dx = move.x - t.fromX;
+            int dy = move.y - t.fromY;
+            int d2 = dx * dx + dy * dy;
 
-                // monsters have no data event ... cannot transit to another room
-                if(d2 < 250 && move.client != null)
-                {
-                    room.transit(move.client, mob, t.toMap, t.toX, t.toY);
-                    return t;
-                }
+            // monsters have no data event ... cannot transit to another room
+            if(d2 < 250 && move.client != null)
+            {
+                room.transit(move.client, mob, t.toMap, t.toX, t.toY);
+                return t;
             }
         }
         
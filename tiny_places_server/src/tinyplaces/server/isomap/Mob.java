@@ -1,6 +1,8 @@
 package tinyplaces.server.isomap;
 
 import tinyplaces.server.data.Creature;
+import tinyplaces.server.data.CreatureState;
+import tinyplaces.server.data.Rgba;
 import tinyplaces.server.data.Spell;
 
 /**
@@ -18,14 +20,17 @@ public class Mob
     public int tile;
     public int frames;   // animation frames
     public int phases;   // animation phases
-    public int x;
+    public int x;        // evaluated lazily while moving, see Room.locate()
     public int y;
     public float scale;
-    public String color;
+    public Rgba color;
     public int type;
     public long nextAiTime;
     public Creature creature; // Usually only set if this is TYPE_CREATURE
+    public CreatureState creatureState; // life of this creature
     public Spell spell; // Usually only set if this is TYPE_PROJECTILE
+    public int motionSlot = -1; // slot in the rooms motion table, -1 if not moving
+    public int version; // room state version of the last change
     
     @Override
     public boolean equals(Object o) {
@@ -0,0 +1,25 @@
+package tinyplaces.server.isomap;
+
+/**
+ * Storage for the mobs of one map layer, by mob id. Iterate over the
+ * slots like with an IntMap, free slots are null:
+ * 
+ * <pre>
+ * for(int i=0; i&lt;layer.capacity(); i++)
+ * {
+ *     Mob mob = layer.valueAt(i);
+ *     if(mob != null) ...
+ * }
+ * </pre>
+ * 
+ * The layer must not be changed while iterating over it.
+ */
+public interface MobLayer 
+{
+    public Mob get(int id);
+    public Mob put(int id, Mob mob);
+    public Mob remove(int id);
+    public int size();
+    public int capacity();
+    public Mob valueAt(int slot);
+}
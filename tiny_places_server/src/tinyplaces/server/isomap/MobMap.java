@@ -0,0 +1,12 @@
+package tinyplaces.server.isomap;
+
+/**
+ * Mob layer which keeps the mob objects on the heap.
+ */
+class MobMap extends IntMap <Mob> implements MobLayer
+{
+    MobMap(int expectedSize)
+    {
+        super(expectedSize);
+    }
+}
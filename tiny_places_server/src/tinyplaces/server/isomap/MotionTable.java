@@ -0,0 +1,382 @@
+package tinyplaces.server.isomap;
+
+import java.util.Arrays;
+import java.util.List;
+import tinyplaces.server.isomap.actions.Move;
+
+/**
+ * Analytic store for all moving mobs of a room. A move is kept as start
+ * point, target point, start time and arrival time, since all moves are
+ * straight lines at constant speed. Positions are only evaluated when
+ * someone asks for them through locate(), and the arrivals are taken
+ * from a queue ordered by arrival time. A mob which is under way costs
+ * nothing per tick.
+ *
+ * Slots are dense. A mob knows its slot through Mob.motionSlot, and
+ * freed slots are filled with the last entry. This class is meant to be
+ * used from the map worker thread only.
+ */
+public class MotionTable
+{
+    private int count;
+
+    // room time in milliseconds, advanced every tick
+    private long time;
+
+    private int [] sx;
+    private int [] sy;
+    private int [] tx;
+    private int [] ty;
+    private long [] startTime;
+    private long [] arrivalTime;
+
+    // time of the last evaluation, to skip repeated locate() calls
+    private long [] evalTime;
+
+    private Mob [] mobs;
+    private Move [] owners;
+
+    // arrival queue, a binary min heap by arrival time. Entries of moves
+    // which were replaced or stopped stay in the heap and are skipped
+    // once they come up.
+    private int dueCount;
+    private long [] dueTimes;
+    private Move [] dueMoves;
+
+
+    public MotionTable()
+    {
+        this(64);
+    }
+
+
+    public MotionTable(int capacity)
+    {
+        sx = new int [capacity];
+        sy = new int [capacity];
+        tx = new int [capacity];
+        ty = new int [capacity];
+        startTime = new long [capacity];
+        arrivalTime = new long [capacity];
+        evalTime = new long [capacity];
+        mobs = new Mob [capacity];
+        owners = new Move [capacity];
+
+        dueTimes = new long [capacity];
+        dueMoves = new Move [capacity];
+    }
+
+
+    public int size()
+    {
+        return count;
+    }
+
+
+    /**
+     * @return The room time in milliseconds.
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+
+    /**
+     * @return The room time of the next arrival, Long.MAX_VALUE if no
+     * mob is moving. Might be a move which was replaced meanwhile.
+     */
+    public long getNextArrival()
+    {
+        return dueCount > 0 ? dueTimes[0] : Long.MAX_VALUE;
+    }
+
+
+    /**
+     * Start moving a mob from its current position to the given target.
+     * If the mob is already moving, the former move is replaced.
+     *
+     * @param owner The move action that owns the slot
+     * @param mob The mob to move
+     * @param x Target x
+     * @param y Target y
+     * @param speed Speed in units per second
+     * @return The replaced move, or null if the mob was not moving.
+     */
+    public Move start(Move owner, Mob mob, int x, int y, int speed)
+    {
+        int slot = mob.motionSlot;
+        Move replaced = null;
+
+        if(isValid(slot, mob))
+        {
+            // the new move starts where the mob is now
+            evaluate(slot);
+            replaced = owners[slot];
+        }
+        else
+        {
+            if(count == mobs.length)
+            {
+                grow();
+            }
+
+            slot = count ++;
+            mobs[slot] = mob;
+            mob.motionSlot = slot;
+        }
+
+        double dx = x - mob.x;
+        double dy = y - mob.y;
+        double len = Math.sqrt(dx * dx + dy * dy);
+
+        // speed is in units per second
+        long duration = speed > 0 ? (long)Math.ceil(len * 1000.0 / speed) : 0;
+
+        sx[slot] = mob.x;
+        sy[slot] = mob.y;
+        tx[slot] = x;
+        ty[slot] = y;
+        startTime[slot] = time;
+        arrivalTime[slot] = time + duration;
+        evalTime[slot] = time;
+        owners[slot] = owner;
+
+        schedule(time + duration, owner);
+
+        return replaced;
+    }
+
+
+    /**
+     * Stop a mob where it is now.
+     *
+     * @return The move which drove the mob, or null if it was not moving.
+     */
+    public Move stop(Mob mob)
+    {
+        int slot = mob.motionSlot;
+
+        if(isValid(slot, mob))
+        {
+            evaluate(slot);
+            Move move = owners[slot];
+            remove(slot);
+            return move;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * @return The move action that currently drives the mob, or null
+     */
+    public Move getMove(Mob mob)
+    {
+        int slot = mob.motionSlot;
+        return isValid(slot, mob) ? owners[slot] : null;
+    }
+
+
+    /**
+     * Bring the position of a moving mob up to date. Mobs which don't move
+     * are left alone.
+     *
+     * @return true if the position of the mob changed.
+     */
+    public boolean locate(Mob mob)
+    {
+        int slot = mob.motionSlot;
+
+        if(isValid(slot, mob) && evalTime[slot] != time)
+        {
+            return evaluate(slot);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Advance the room time. Moves which arrive by then put their mobs
+     * onto the target, free their slots and are added to the arrivals.
+     *
+     * @param dt Time in milliseconds
+     * @param version Room state version to mark arrived mobs with
+     * @param arrivals Receives the moves which arrived
+     */
+    public void advance(int dt, int version, List <Move> arrivals)
+    {
+        time += dt;
+
+        while(dueCount > 0 && dueTimes[0] <= time)
+        {
+            long due = dueTimes[0];
+            Move move = dueMoves[0];
+            removeDue();
+
+            Mob mob = move.mob;
+            int slot = mob == null ? -1 : mob.motionSlot;
+
+            // skip moves which were replaced or stopped meanwhile
+            if(isValid(slot, mob) && owners[slot] == move && arrivalTime[slot] == due)
+            {
+                mob.x = tx[slot];
+                mob.y = ty[slot];
+                mob.version = version;
+
+                remove(slot);
+                arrivals.add(move);
+            }
+        }
+    }
+
+
+    private boolean isValid(int slot, Mob mob)
+    {
+        return slot >= 0 && slot < count && mobs[slot] == mob;
+    }
+
+
+    private boolean evaluate(int slot)
+    {
+        long elapsed = time - startTime[slot];
+        long duration = arrivalTime[slot] - startTime[slot];
+        int x, y;
+
+        if(elapsed >= duration)
+        {
+            x = tx[slot];
+            y = ty[slot];
+        }
+        else
+        {
+            x = sx[slot] + (int)((tx[slot] - sx[slot]) * elapsed / duration);
+            y = sy[slot] + (int)((ty[slot] - sy[slot]) * elapsed / duration);
+        }
+
+        evalTime[slot] = time;
+
+        Mob mob = mobs[slot];
+        if(mob.x != x || mob.y != y)
+        {
+            mob.x = x;
+            mob.y = y;
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Free a slot. The last slot will be moved into the gap.
+     */
+    private void remove(int slot)
+    {
+        mobs[slot].motionSlot = -1;
+
+        int last = -- count;
+
+        if(slot != last)
+        {
+            sx[slot] = sx[last];
+            sy[slot] = sy[last];
+            tx[slot] = tx[last];
+            ty[slot] = ty[last];
+            startTime[slot] = startTime[last];
+            arrivalTime[slot] = arrivalTime[last];
+            evalTime[slot] = evalTime[last];
+            mobs[slot] = mobs[last];
+            owners[slot] = owners[last];
+
+            mobs[slot].motionSlot = slot;
+        }
+
+        mobs[last] = null;
+        owners[last] = null;
+    }
+
+
+    private void schedule(long due, Move move)
+    {
+        if(dueCount == dueTimes.length)
+        {
+            dueTimes = Arrays.copyOf(dueTimes, dueCount * 2);
+            dueMoves = Arrays.copyOf(dueMoves, dueCount * 2);
+        }
+
+        // sift up
+        int i = dueCount ++;
+        while(i > 0)
+        {
+            int parent = (i - 1) >> 1;
+            if(dueTimes[parent] <= due)
+            {
+                break;
+            }
+            dueTimes[i] = dueTimes[parent];
+            dueMoves[i] = dueMoves[parent];
+            i = parent;
+        }
+
+        dueTimes[i] = due;
+        dueMoves[i] = move;
+    }
+
+
+    private void removeDue()
+    {
+        int last = -- dueCount;
+        long due = dueTimes[last];
+        Move move = dueMoves[last];
+        dueMoves[last] = null;
+
+        if(last == 0)
+        {
+            return;
+        }
+
+        // sift down
+        int i = 0;
+        while(true)
+        {
+            int child = i * 2 + 1;
+            if(child >= last)
+            {
+                break;
+            }
+            if(child + 1 < last && dueTimes[child + 1] < dueTimes[child])
+            {
+                child ++;
+            }
+            if(due <= dueTimes[child])
+            {
+                break;
+            }
+            dueTimes[i] = dueTimes[child];
+            dueMoves[i] = dueMoves[child];
+            i = child;
+        }
+
+        dueTimes[i] = due;
+        dueMoves[i] = move;
+    }
+
+
+    private void grow()
+    {
+        int capacity = mobs.length * 2;
+
+        sx = Arrays.copyOf(sx, capacity);
+        sy = Arrays.copyOf(sy, capacity);
+        tx = Arrays.copyOf(tx, capacity);
+        ty = Arrays.copyOf(ty, capacity);
+        startTime = Arrays.copyOf(startTime, capacity);
+        arrivalTime = Arrays.copyOf(arrivalTime, capacity);
+        evalTime = Arrays.copyOf(evalTime, capacity);
+        mobs = Arrays.copyOf(mobs, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+    }
+}
@@ -0,0 +1,277 @@
+package tinyplaces.server.isomap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import tinyplaces.server.data.Rgba;
+
+/**
+ * Off-heap mob layer for props. The mobs are kept as fixed size records
+ * in a direct buffer, colours as packed RGBA values, so even very large
+ * maps put no load on the garbage collector.
+ * 
+ * Only the fields which props use are stored: id, tile, frames, phases,
+ * position, scale, colour, type and version. get() and remove() return
+ * detached copies, changes to them must be stored again by put(). 
+ * valueAt() returns one shared view, which is only valid until the next
+ * call. 
+ * 
+ * Records are dense. Freed records are filled with the last record.
+ */
+class PropStore implements MobLayer
+{
+    private static final int ID = 0;
+    private static final int TILE = 4;
+    private static final int FRAMES = 8;
+    private static final int PHASES = 12;
+    private static final int X = 16;
+    private static final int Y = 20;
+    private static final int SCALE = 24;
+    private static final int COLOR = 28;
+    private static final int TYPE = 32;
+    private static final int VERSION = 36;
+    private static final int RECORD_SIZE = 40;
+    
+    private ByteBuffer records;
+    private int count;
+    
+    // mob id -> record, open addressing, -1 marks a free entry
+    private int [] indexKeys;
+    private int [] indexSlots;
+    private int indexMask;
+    
+    // colours by packed value, so reading needs no lookup in the global table
+    private final IntMap <Rgba> colors = new IntMap<Rgba>(64);
+    
+    private final Mob view = new Mob();
+    
+    
+    PropStore(int expectedSize)
+    {
+        records = allocate(expectedSize);
+        makeIndex(expectedSize * 2);
+    }
+
+    
+    @Override
+    public Mob get(int id) 
+    {
+        int slot = findSlot(id);
+        return slot < 0 ? null : read(slot, new Mob());
+    }
+
+    
+    @Override
+    public Mob put(int id, Mob mob) 
+    {
+        int entry = findEntry(id);
+        
+        if(indexSlots[entry] >= 0)
+        {
+            int slot = indexSlots[entry];
+            Mob old = read(slot, new Mob());
+            write(slot, id, mob);
+            return old;
+        }
+        
+        if(count * RECORD_SIZE == records.capacity())
+        {
+            ByteBuffer larger = allocate(count * 2);
+            records.clear();
+            larger.put(records);
+            records = larger;
+        }
+        
+        write(count, id, mob);
+        indexKeys[entry] = id;
+        indexSlots[entry] = count;
+        count ++;
+        
+        // keep the index at most half full
+        if(count * 2 > indexSlots.length)
+        {
+            rebuildIndex(indexSlots.length * 2);
+        }
+        
+        return null;
+    }
+
+    
+    @Override
+    public Mob remove(int id) 
+    {
+        int entry = findEntry(id);
+        int slot = indexSlots[entry];
+        
+        if(slot < 0)
+        {
+            return null;
+        }
+        
+        Mob old = read(slot, new Mob());
+        removeEntry(entry);
+        
+        int last = -- count;
+        
+        if(slot != last)
+        {
+            // move the last record into the gap
+            int from = last * RECORD_SIZE;
+            int to = slot * RECORD_SIZE;
+            for(int i=0; i<RECORD_SIZE; i+=4)
+            {
+                records.putInt(to + i, records.getInt(from + i));
+            }
+            
+            indexSlots[findEntry(records.getInt(to + ID))] = slot;
+        }
+        
+        return old;
+    }
+
+    
+    @Override
+    public int size() 
+    {
+        return count;
+    }
+
+    
+    @Override
+    public int capacity() 
+    {
+        return count;
+    }
+
+    
+    @Override
+    public Mob valueAt(int slot) 
+    {
+        return read(slot, view);
+    }
+    
+    
+    private Mob read(int slot, Mob mob)
+    {
+        int base = slot * RECORD_SIZE;
+        
+        mob.id = records.getInt(base + ID);
+        mob.tile = records.getInt(base + TILE);
+        mob.frames = records.getInt(base + FRAMES);
+        mob.phases = records.getInt(base + PHASES);
+        mob.x = records.getInt(base + X);
+        mob.y = records.getInt(base + Y);
+        mob.scale = records.getFloat(base + SCALE);
+        mob.color = colors.get(records.getInt(base + COLOR));
+        mob.type = records.getInt(base + TYPE);
+        mob.version = records.getInt(base + VERSION);
+        
+        return mob;
+    }
+    
+    
+    private void write(int slot, int id, Mob mob)
+    {
+        int base = slot * RECORD_SIZE;
+        
+        records.putInt(base + ID, id);
+        records.putInt(base + TILE, mob.tile);
+        records.putInt(base + FRAMES, mob.frames);
+        records.putInt(base + PHASES, mob.phases);
+        records.putInt(base + X, mob.x);
+        records.putInt(base + Y, mob.y);
+        records.putFloat(base + SCALE, mob.scale);
+        records.putInt(base + COLOR, mob.color.rgba);
+        colors.put(mob.color.rgba, mob.color);
+        records.putInt(base + TYPE, mob.type);
+        records.putInt(base + VERSION, mob.version);
+    }
+    
+    
+    private int findSlot(int id)
+    {
+        return indexSlots[findEntry(id)];
+    }
+    
+    
+    /**
+     * @return The index entry of the id, or the free entry where it belongs.
+     */
+    private int findEntry(int id)
+    {
+        int entry = hash(id) & indexMask;
+        
+        while(indexSlots[entry] >= 0 && indexKeys[entry] != id)
+        {
+            entry = (entry + 1) & indexMask;
+        }
+        
+        return entry;
+    }
+    
+    
+    private void removeEntry(int entry)
+    {
+        // shift back the following entries, see IntMap.remove()
+        int gap = entry;
+        int next = (gap + 1) & indexMask;
+        
+        while(indexSlots[next] >= 0)
+        {
+            int home = hash(indexKeys[next]) & indexMask;
+            
+            if(((next - home) & indexMask) >= ((next - gap) & indexMask))
+            {
+                indexKeys[gap] = indexKeys[next];
+                indexSlots[gap] = indexSlots[next];
+                gap = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+        
+        indexSlots[gap] = -1;
+    }
+    
+    
+    private void makeIndex(int minSize)
+    {
+        int size = 16;
+        while(size < minSize)
+        {
+            size <<= 1;
+        }
+        
+        indexKeys = new int [size];
+        indexSlots = new int [size];
+        Arrays.fill(indexSlots, -1);
+        indexMask = size - 1;
+    }
+    
+    
+    private void rebuildIndex(int size)
+    {
+        makeIndex(size);
+        
+        for(int slot=0; slot<count; slot++)
+        {
+            int entry = findEntry(records.getInt(slot * RECORD_SIZE + ID));
+            indexKeys[entry] = records.getInt(slot * RECORD_SIZE + ID);
+            indexSlots[entry] = slot;
+        }
+    }
+    
+    
+    private static ByteBuffer allocate(int records)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(records, 16) * RECORD_SIZE);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+    
+    
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -6,92 +6,439 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tinyplaces.server.CommandWorker;
 import tinyplaces.server.Server;
 import tinyplaces.server.ServerDataEvent;
 import tinyplaces.server.data.AnimationType;
+import tinyplaces.server.data.Catalogs;
 import tinyplaces.server.data.Creature;
-import tinyplaces.server.data.CreatureCatalog;
 import tinyplaces.server.data.Damage;
+import tinyplaces.server.data.FastRandom;
 import tinyplaces.server.data.Item;
 import tinyplaces.server.data.ItemBuilder;
 import tinyplaces.server.data.Population;
 import tinyplaces.server.data.PopulationsCatalog;
+import tinyplaces.server.data.Rgba;
 import tinyplaces.server.data.Spell;
-import tinyplaces.server.data.SpellCatalog;
+import tinyplaces.server.data.Transition;
+import tinyplaces.server.data.TransitionCatalog;
 import tinyplaces.server.data.TreasureClass;
-import tinyplaces.server.data.TreasureClassCatalog;
 import tinyplaces.server.isomap.actions.Action;
+import tinyplaces.server.isomap.actions.ActionPool;
+import tinyplaces.server.isomap.actions.Move;
 
 
 /**
  * A room (map segment)
+ * 
+ * Rooms are actors: their state is only changed by the owner thread (the
+ * map worker). Other threads hand their work to the room with execute(),
+ * the owner thread runs it between ticks.
+ * 
  * @author Hj. Malthaner
  */
 public class Room 
 {
     private static final HashMap<String, Room> rooms = new HashMap<String, Room>(64);
+    private static final ArrayList<Room> roomList = new ArrayList<Room>(64);
 
-    private int nextObjectId = 1;
+    // the thread which owns all rooms
+    private static volatile Thread owner;
     
-    private final HashMap <Integer, Mob> patches = new HashMap<Integer, Mob>();
-    private final HashMap <Integer, Mob> mobs = new HashMap<Integer, Mob>();
-    private final HashMap <Integer, Mob> clouds = new HashMap<Integer, Mob>();
+    // wakes the owner thread if commands were posted
+    private static final Object commandSignal = new Object();
+    private static boolean commandsPending;
+
+    // creatures only shoot at players within this distance
+    private static final int AI_FIRE_RANGE = 600;
+    
+    // Keep the prop layers 1 and 5 off the heap, for editing very large
+    // maps. Enable with -Dtinyplaces.offHeapProps=true
+    private static final boolean OFF_HEAP_PROPS = Boolean.getBoolean("tinyplaces.offHeapProps");
+    
+    // creatures which did nothing think again after this time
+    private static final int AI_RETRY_TIME = 100;
+    
+    // AI level of detail. Creature groups with a player closer than the
+    // near range run the full AI, up to the far range they only wander
+    // and think less often, beyond they don't think at all. Can be set
+    // with system properties, e.g. -Dtinyplaces.ai.nearRange=1200
+    static final int AI_FULL = 0;
+    static final int AI_REDUCED = 1;
+    static final int AI_IDLE = 2;
+    private static final int AI_NEAR_RANGE = Integer.getInteger("tinyplaces.ai.nearRange", 1000);
+    private static final int AI_FAR_RANGE = Integer.getInteger("tinyplaces.ai.farRange", 2500);
+    private static final int AI_REDUCED_FACTOR = Integer.getInteger("tinyplaces.ai.reducedFactor", 4);
+    private static final int AI_IDLE_TIME = Integer.getInteger("tinyplaces.ai.idleTime", 30000);
+
+    // the edit journal of a room is written into the map file after this many edits
+    private static final int JOURNAL_LIMIT = Integer.getInteger("tinyplaces.journalLimit", 500);
+
+    // writes the map files and journals, one at a time in order of the requests
+    private static final ExecutorService saver = Executors.newSingleThreadExecutor(new ThreadFactory() 
+    {
+        @Override
+        public Thread newThread(Runnable runnable) 
+        {
+            Thread thread = new Thread(runnable, "Map saver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    // how long the server waits for pending saves when it stops
+    private static final int SAVER_SHUTDOWN_TIME = Integer.getInteger("tinyplaces.saverShutdownTime", 30000);
+    
+    static
+    {
+        // the saver thread is a daemon, so it would die with pending
+        // saves. Let it finish them when the server stops.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() 
+        {
+            @Override
+            public void run() 
+            {
+                saver.shutdown();
+                
+                try 
+                {
+                    if(!saver.awaitTermination(SAVER_SHUTDOWN_TIME, TimeUnit.MILLISECONDS))
+                    {
+                        Logger.getLogger(Room.class.getName()).log(Level.WARNING, "Map saver did not finish, edits may be lost.");
+                    }
+                }
+                catch (InterruptedException ex) 
+                {
+                    Logger.getLogger(Room.class.getName()).log(Level.WARNING, "Interrupted while waiting for the map saver.", ex);
+                }
+            }
+        }, "Map saver shutdown"));
+    }
+
+    private final AtomicInteger nextObjectId = new AtomicInteger(1);
     
+    // State version for delta synchronisation. Changes are marked with
+    // version + 1, each tick which sends deltas commits a new version.
+    private volatile int version = 0;
+    
+    // removed mobs, kept until all delta clients acknowledged the removal
+    private int removedCount = 0;
+    private int [] removedIds = new int [64];
+    private int [] removedLayers = new int [64];
+    private int [] removedVersions = new int [64];
+    
+    // changes to the props of layer 1 and 5. Props don't move, so delta
+    // clients get all of them once and later only the logged changes.
+    private int changedCount = 0;
+    private int [] changedIds = new int [64];
+    private int [] changedLayers = new int [64];
+    private int [] changedVersions = new int [64];
+    
+    // version of the last change to the mobs or map items of this room,
+    // the interest checks skip their scans while nothing changes
+    private int lastChange = 0;
+    
+    private final MobLayer patches = makePropLayer(256);
+    private final MobMap mobs = new MobMap(256);
+    private final MobLayer clouds = makePropLayer(64);
+    
+    private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<Runnable>();
     private final ArrayList<Action> actions = new ArrayList<Action>(256);
     private final ArrayList<Action> actionsToAdd = new ArrayList<Action>(256);
     private final ArrayList<CreatureGroup> groups = new ArrayList<CreatureGroup>(32);
+    
+    // creature group of each grouped mob, by mob id
+    private final IntMap<CreatureGroup> mobGroups = new IntMap<CreatureGroup>(256);
+    private final MotionTable motion = new MotionTable();
+    private final ActionPool actionPool = new ActionPool();
+    
+    // only used by the thread which runs the room
+    private final FastRandom random;
+    
+    // earliest AI wakeup of the creatures in this room, system time
+    private long nextAiTime = Long.MAX_VALUE;
+    
+    // AI evaluations by level of detail
+    private long aiFull;
+    private long aiReduced;
+    private long aiSkipped;
 
-    private final ArrayList <Item> items = new ArrayList<Item>(256);
+    // index of the player avatars in this room, for AI target selection
+    private final ArrayList<Mob> players = new ArrayList<Mob>(16);
+
+    // items lying on the map, by mob id
+    private final IntMap <Item> items = new IntMap<Item>(256);
+    
+    // work lists of handleAreaHit()
+    private final ArrayList<Mob> hitMobs = new ArrayList<Mob>(32);
+    private final ArrayList<Mob> deadMobs = new ArrayList<Mob>(32);
+    
+    // new loot, not yet sent to the clients
+    private final ArrayList<Item> drops = new ArrayList<Item>(32);
     private CommandWorker commandWorker;
     private Server server;
     
     public final String name;
     public final String backdrop;
     
+    // prop edits since the map file was written, null for rooms without map file
+    private String filename;
+    private EditJournal journal;
+    private int journalEntries;
+    
+    // transitions to other rooms, resolved again after the catalogs were reloaded
+    private List <Transition> transitions;
+    private int transitionsGeneration;
+    
     
+    /**
+     * Rooms by file name. Lock the map while using it.
+     */
     public static HashMap<String, Room> getRooms()
     {
         return rooms;
     }
 
+    
+    /**
+     * Publish a fully loaded room. From now on it will be run by the 
+     * owner thread.
+     * 
+     * @param filename The map file name of the room
+     * @param room The room
+     */
+    public static void addRoom(String filename, Room room)
+    {
+        synchronized(rooms)
+        {
+            rooms.put(filename, room);
+        }
+        
+        synchronized(roomList)
+        {
+            roomList.add(room);
+        }
+    }
+    
+    
+    /**
+     * Make the calling thread the owner of all rooms.
+     */
+    public static void setOwner(Thread thread)
+    {
+        owner = thread;
+    }
+    
+    
+    /**
+     * Wait until commands are posted to any room, or the timeout passes.
+     * @param timeout Maximum wait time in milliseconds
+     */
+    public static void awaitCommands(long timeout) throws InterruptedException
+    {
+        synchronized(commandSignal)
+        {
+            if(!commandsPending)
+            {
+                commandSignal.wait(timeout);
+            }
+            commandsPending = false;
+        }
+    }
+
+    
+    /**
+     * Copy all rooms into the given list, each room once.
+     * @param result The list to fill, will be cleared first.
+     */
+    public static void getRoomList(List<Room> result)
+    {
+        result.clear();
+        
+        synchronized(roomList)
+        {
+            for(int i=0; i<roomList.size(); i++)
+            {
+                result.add(roomList.get(i));
+            }
+        }
+    }
+
 
     public Room(String name, String backdrop)
     {
         this.name = name;
         this.backdrop = backdrop;
-        rooms.put(name, this);
+        this.random = FastRandom.forStream(name);
+        
+        resolveTransitions();
+    }
+    
+    
+    private void resolveTransitions()
+    {
+        transitionsGeneration = Catalogs.getGeneration();
+        
+        List <Transition> list = TransitionCatalog.get(name);
+        transitions = list != null ? list : new ArrayList<Transition>(0);
+    }
+
+    
+    /**
+     * Run a command in the owner thread of this room. If the caller is the
+     * owner thread, the command is run right away, otherwise it is queued
+     * and run before the next tick.
+     * 
+     * @param command The command to run
+     */
+    public void execute(Runnable command)
+    {
+        if(Thread.currentThread() == owner)
+        {
+            command.run();
+        }
+        else
+        {
+            inbox.add(command);
+            
+            synchronized(commandSignal)
+            {
+                commandsPending = true;
+                commandSignal.notify();
+            }
+        }
+    }
+    
+    
+    /**
+     * Run all queued commands. Must only be called by the owner thread.
+     */
+    public void runCommands()
+    {
+        Runnable command;
+        
+        while((command = inbox.poll()) != null)
+        {
+            try
+            {
+                command.run();
+            }
+            catch(Exception ex)
+            {
+                // report but keep flying
+                Logger.getLogger(Room.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
     }
 
     
     public ArrayList<Action> getActions()
     {
-        actions.addAll(actionsToAdd);
+        // no addAll() here, it would allocate a temporary array
+        for(int i=0; i<actionsToAdd.size(); i++)
+        {
+            actions.add(actionsToAdd.get(i));
+        }
         actionsToAdd.clear();
         
         return actions;
     }
     
     
+    public MotionTable getMotionTable()
+    {
+        return motion;
+    }
+    
+    
+    /**
+     * Bring the position of a mob up to date. Positions of moving mobs are
+     * only evaluated on demand, so read mob.x and mob.y after calling this.
+     * 
+     * @param mob The mob, may be null
+     */
+    public void locate(Mob mob)
+    {
+        if(mob != null && motion.locate(mob))
+        {
+            mob.version = getChangeVersion();
+            lastChange = mob.version;
+        }
+    }
+    
+    
+    /**
+     * @return The random generator of this room, only for the owner thread
+     */
+    public FastRandom getRandom()
+    {
+        return random;
+    }
+    
+    
+    public ActionPool getActionPool()
+    {
+        return actionPool;
+    }
+    
+    
     public void addAction(Action move) 
     {
         // due to threading and the fact that some actions want to add
         // new actions while being proccess (ConcurrentModification)
         // new actions go into a queue first and will be added at a
         // proper time
+        
+        // This runs on the map worker thread, which plans its next tick
+        // after each batch of commands, so no extra wakeup is needed
 
         actionsToAdd.add(move);
     }
 
+
+    /**
+     * @return true if this room needs a tick every TICK_TIME, because
+     * actions are pending, or mobs move in sight of players.
+     */
+    boolean isBusy()
+    {
+        return actions.size() > 0 || actionsToAdd.size() > 0 ||
+               (motion.size() > 0 && players.size() > 0);
+    }
+    
+    
+    /**
+     * @param lastTick System time of the last tick
+     * @return System time of the next AI wakeup or arrival in this room,
+     * Long.MAX_VALUE if there is none.
+     */
+    long getNextWakeup(long lastTick)
+    {
+        long wakeup = nextAiTime;
+        long arrival = motion.getNextArrival();
+        
+        if(arrival != Long.MAX_VALUE)
+        {
+            // motion table time runs in step with the ticks
+            wakeup = Math.min(wakeup, lastTick + arrival - motion.getTime());
+        }
+        
+        return wakeup;
+    }
+
     
-    public HashMap <Integer, Mob> getLayerMap(int layer)
+    public MobLayer getLayerMap(int layer)
     {
         switch(layer)
         {
@@ -108,96 +455,496 @@ public class Room
     }
     
     
-    public int getNextObjectId()
+    private static MobLayer makePropLayer(int expectedSize)
+    {
+        if(OFF_HEAP_PROPS)
+        {
+            return new PropStore(expectedSize);
+        }
+        
+        return new MobMap(expectedSize);
+    }
+    
+    
+    /**
+     * Ids of the mobs and map items of this room. Safe to call from
+     * any thread.
+     */
+    public int getNextObjectId()
+    {
+        return nextObjectId.getAndIncrement();
+    }
+
+    
+    public void addMob(int layer, Mob mob)
+    {
+        MobLayer lmap = getLayerMap(layer);
+        
+        mob.version = getChangeVersion();
+        lmap.put(mob.id, mob);
+        noteChange(layer, mob);
+        
+        if(mob.type == Mob.TYPE_PLAYER)
+        {
+            players.add(mob);
+            
+            // idle creatures must check for the new player soon
+            nextAiTime = 0;
+        }
+    }
+    
+    
+    public Mob getMob(int layer, int id)
+    {
+        MobLayer lmap = getLayerMap(layer);
+        return lmap.get(id);
+    }
+
+    
+    public Mob removeMob(int layer, int id)
+    {
+        MobLayer lmap = getLayerMap(layer);
+        Mob mob;
+    
+        CreatureGroup group = mobGroups.remove(id);
+        if(group != null)
+        {
+            group.remove(id);
+        }
+        
+        mob = lmap.remove(id);
+        
+        if(mob != null)
+        {
+            // a mob which is under way stops here
+            Move move = motion.stop(mob);
+            if(move != null)
+            {
+                actionPool.release(move);
+            }
+        }
+        
+        if(mob != null && mob.type == Mob.TYPE_PLAYER)
+        {
+            players.remove(mob);
+        }
+        
+        if(mob != null && mob.type != Mob.TYPE_PROJECTILE)
+        {
+            addRemoved(id, layer);
+        }
+        return mob;
+    }
+
+
+    /**
+     * @return The version to mark state changes with.
+     */
+    public int getChangeVersion()
+    {
+        return version + 1;
+    }
+
+    
+    /**
+     * Mark a mob as changed, e.g. after an update from the editor. Props
+     * from an off-heap layer are copies, this also stores their changes.
+     */
+    public void markChanged(int layer, Mob mob)
+    {
+        mob.version = getChangeVersion();
+        getLayerMap(layer).put(mob.id, mob);
+        noteChange(layer, mob);
+    }
+    
+    
+    /**
+     * @return The version of the last change to the mobs or map items
+     */
+    public int getLastChange()
+    {
+        return lastChange;
+    }
+    
+    
+    /**
+     * Called for changes which don't go through addMob() or markChanged(),
+     * like arrivals and map items.
+     */
+    void noteChange()
+    {
+        lastChange = getChangeVersion();
+    }
+    
+    
+    private void noteChange(int layer, Mob mob)
+    {
+        lastChange = mob.version;
+        
+        if(layer == 3)
+        {
+            return;
+        }
+        
+        if(changedCount == changedIds.length)
+        {
+            int capacity = changedCount * 2;
+            changedIds = Arrays.copyOf(changedIds, capacity);
+            changedLayers = Arrays.copyOf(changedLayers, capacity);
+            changedVersions = Arrays.copyOf(changedVersions, capacity);
+        }
+        
+        changedIds[changedCount] = mob.id;
+        changedLayers[changedCount] = layer;
+        changedVersions[changedCount] = mob.version;
+        changedCount ++;
+    }
+    
+    
+    /**
+     * Start a new state version. All changes so far belong to the 
+     * returned version, later changes to the next one.
+     * 
+     * @return The committed version
+     */
+    public int commitVersion()
+    {
+        return ++ version;
+    }
+    
+    
+    private void addRemoved(int id, int layer)
+    {
+        if(removedCount == removedIds.length)
+        {
+            int capacity = removedCount * 2;
+            removedIds = Arrays.copyOf(removedIds, capacity);
+            removedLayers = Arrays.copyOf(removedLayers, capacity);
+            removedVersions = Arrays.copyOf(removedVersions, capacity);
+        }
+        
+        removedIds[removedCount] = id;
+        removedLayers[removedCount] = layer;
+        removedVersions[removedCount] = getChangeVersion();
+        removedCount ++;
+        
+        lastChange = getChangeVersion();
+    }
+    
+    
+    /**
+     * Append all props of a layer to a delta command.
+     * 
+     * @param buf The buffer to append the entries to
+     * @param layer 1 or 5
+     * @return The number of entries appended
+     */
+    public int appendProps(StringBuilder buf, int layer)
+    {
+        MobLayer props = getLayerMap(layer);
+        int count = 0;
+        
+        for(int i=0; i<props.capacity(); i++)
+        {
+            Mob mob = props.valueAt(i);
+            if(mob != null)
+            {
+                appendDeltaEntry(buf, mob, layer);
+                count ++;
+            }
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * Append the props of layer 1 and 5 which changed after the given
+     * version to a delta command. Each prop is appended once, with its
+     * current state.
+     * 
+     * @param buf The buffer to append the entries to
+     * @param since Version which the client acknowledged
+     * @return The number of entries appended
+     */
+    public int appendChangedProps(StringBuilder buf, int since)
+    {
+        int count = 0;
+        
+        for(int i=0; i<changedCount; i++)
+        {
+            if(changedVersions[i] <= since)
+            {
+                continue;
+            }
+            
+            // only the latest change of a prop which still exists
+            Mob mob = getLayerMap(changedLayers[i]).get(changedIds[i]);
+            if(mob != null && mob.version == changedVersions[i])
+            {
+                appendDeltaEntry(buf, mob, changedLayers[i]);
+                count ++;
+            }
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * Append one mob to a delta command.
+     */
+    public static void appendDeltaEntry(StringBuilder buf, Mob mob, int layer)
+    {
+        buf.append(',').append(mob.id);
+        buf.append(',').append(layer);
+        buf.append(',').append(mob.tile);
+        buf.append(',').append(mob.frames);
+        buf.append(',').append(mob.phases);
+        buf.append(',').append(mob.x);
+        buf.append(',').append(mob.y);
+        buf.append(',').append(mob.scale);
+        buf.append(',').append(mob.color);
+        buf.append(',').append(mob.type);
+    }
+    
+    
+    /**
+     * Append the removals newer than the given version to a delta command.
+     * Layer 3 removals are only sent for mobs the client knows, and the
+     * client forgets them. Props are sent if they were removed after the
+     * client got all props of the room.
+     * 
+     * @param buf The buffer to append id and layer of each removal to
+     * @param since Version which the client acknowledged
+     * @param client The client to send the removals to
+     * @return The number of removals appended
+     */
+    public int appendRemoved(StringBuilder buf, int since, Client client)
+    {
+        int count = 0;
+        
+        for(int i=0; i<removedCount; i++)
+        {
+            if(removedVersions[i] <= since)
+            {
+                continue;
+            }
+            
+            boolean known = removedLayers[i] == 3 ? 
+                            client.removeKnownMob(removedIds[i]) : 
+                            removedVersions[i] > client.propsVersion;
+            if(known)
+            {
+                buf.append(',').append(removedIds[i]);
+                buf.append(',').append(removedLayers[i]);
+                count ++;
+            }
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * Drop all removals and prop changes which every delta client has 
+     * acknowledged.
+     * @param version The lowest acknowledged version
+     */
+    public void pruneDeltaLog(int version)
+    {
+        int n = 0;
+        
+        for(int i=0; i<changedCount; i++)
+        {
+            if(changedVersions[i] > version)
+            {
+                changedIds[n] = changedIds[i];
+                changedLayers[n] = changedLayers[i];
+                changedVersions[n] = changedVersions[i];
+                n ++;
+            }
+        }
+        
+        changedCount = n;
+        n = 0;
+        
+        for(int i=0; i<removedCount; i++)
+        {
+            if(removedVersions[i] > version)
+            {
+                removedIds[n] = removedIds[i];
+                removedLayers[n] = removedLayers[i];
+                removedVersions[n] = removedVersions[i];
+                n ++;
+            }
+        }
+        
+        removedCount = n;
+    }
+    
+    
+    /**
+     * Save the props of this room. The layers are copied right away, the
+     * file is written by a background thread. Must be called by the owner
+     * thread of the room.
+     * 
+     * @param filename The map file name, with extension
+     * @param editor The client to notify once the map is saved, or null
+     */
+    public void save(final String filename, final Client editor) 
+    {
+        final MapTemplate snapshot = MapTemplate.snapshot(this);
+        
+        // the edits so far are in the new map file
+        final EditJournal done = filename.equals(this.filename + ".txt") ? journal : null;
+        if(done != null)
+        {
+            journalEntries = 0;
+        }
+        
+        saver.execute(new Runnable() 
+        {
+            @Override
+            public void run() 
+            {
+                String message;
+                
+                try 
+                {
+                    snapshot.writeText(new File("maps", filename));
+                    if(done != null)
+                    {
+                        done.reset(snapshot.checksum());
+                    }
+                    message = "Map saved as " + filename + ".";
+                }
+                catch (IOException ex) 
+                {
+                    Logger.getLogger(Room.class.getName()).log(Level.SEVERE, null, ex);
+                    message = "Saving " + filename + " failed.";
+                }
+                
+                if(editor != null)
+                {
+                    // messages are sent by the owner thread of the room
+                    final String chat = "CHAT,System,1 1 1 1," + message + "\n";
+                    execute(new Runnable() 
+                    {
+                        @Override
+                        public void run() 
+                        {
+                            commandWorker.singlecast(server, editor.socket, chat);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Replay the edit journal of the map this room was made from. Further
+     * prop edits are then added to the journal.
+     * 
+     * @param filename The map file name without extension
+     * @param checksum Checksum of the map content the room was made from
+     */
+    void openJournal(String filename, long checksum)
+    {
+        this.filename = filename;
+        journal = new EditJournal(new File("maps", filename + ".journal"));
+        
+        try 
+        {
+            journalEntries = journal.replay(this, checksum);
+        }
+        catch (IOException ex) 
+        {
+            Logger.getLogger(Room.class.getName()).log(Level.SEVERE, "Cannot read edit journal of " + filename, ex);
+        }
+        
+        // a broken journal with usable edits is compacted into the map
+        // file. Otherwise the journal is only reset by the first new edit,
+        // so maps which are never edited don't get a journal file.
+        if(journal.isDamaged() && journalEntries > 0)
+        {
+            save(filename + ".txt", null);
+        }
+    }
+    
+    
+    /**
+     * Record a prop which was added by an editor.
+     */
+    public void journalAdd(int layer, Mob mob)
     {
-        return nextObjectId ++;
+        journal(layer, mob, EditJournal.add(layer, mob));
     }
-
     
-    public void addMob(int layer, Mob mob)
+    
+    /**
+     * Record a prop which was deleted by an editor.
+     */
+    public void journalDelete(int layer, Mob mob)
     {
-        HashMap <Integer, Mob> lmap = getLayerMap(layer);
-        
-        synchronized(lmap)
-        {
-            lmap.put(mob.id, mob);
-        }
+        journal(layer, mob, EditJournal.delete(layer, mob));
     }
     
     
-    public Mob getMob(int layer, int id)
+    /**
+     * Record a prop which was changed by an editor.
+     * 
+     * @param before The prop values before the change, from describeProp()
+     */
+    public void journalUpdate(int layer, String before, Mob mob)
     {
-        HashMap <Integer, Mob> lmap = getLayerMap(layer);
-        return lmap.get(id);
+        journal(layer, mob, EditJournal.update(layer, before, mob));
     }
-
     
-    public Mob removeMob(int layer, int id)
-    {
-        HashMap <Integer, Mob> lmap = getLayerMap(layer);
-        Mob mob;
     
-        for(CreatureGroup group : groups)
-        {
-            group.remove(id);
-        }
-        
-        synchronized(lmap)
-        {
-            mob = lmap.remove(id);
-        }
-        return mob;
-    }
-
-
-    public void save(String filename) 
+    /**
+     * @return The values of a prop as they are kept in the edit journal
+     */
+    public static String describeProp(Mob mob)
     {
-        try 
-        {
-            File file = new File("maps", filename);
-            FileWriter writer = new FileWriter(file);
-            
-            writer.write("v10\n");
-            writer.write(name + "\n");
-            writer.write(backdrop + "\n");
-            saveLayer(writer, 1);
-            saveLayer(writer, 3);
-            saveLayer(writer, 5);
-            
-            writer.close();
-        }
-        catch (IOException ex) 
-        {
-            Logger.getLogger(Room.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        return EditJournal.fields(mob);
     }
     
     
-    private void saveLayer(Writer writer, int layer) throws IOException 
+    private void journal(int layer, Mob mob, final String entry)
     {
-        HashMap <Integer, Mob> lmap = getLayerMap(layer);
-
-        Set <Integer> keys = lmap.keySet();
-
-        for(Integer i : keys)
+        if(journal == null || mob.type != Mob.TYPE_PROP)
+        {
+            return;
+        }
+        
+        final EditJournal target = journal;
+        saver.execute(new Runnable() 
         {
-            Mob mob = lmap.get(i);
-            if(mob.type == Mob.TYPE_PROP)
+            @Override
+            public void run() 
             {
-                // id will not be saved but set freshly on loading the map
-                String line = "" + layer + "," +
-                    mob.tile + "," +
-                    mob.x + "," +
-                    mob.y + "," +
-                    mob.scale + "," +
-                    mob.color + "\n";
-
-                writer.write(line);
+                try 
+                {
+                    target.append(entry);
+                }
+                catch (IOException ex) 
+                {
+                    Logger.getLogger(Room.class.getName()).log(Level.SEVERE, "Cannot write edit journal of " + filename, ex);
+                }
             }
+        });
+        
+        journalEntries ++;
+        if(journalEntries >= JOURNAL_LIMIT)
+        {
+            // compact the journal into the map file
+            save(filename + ".txt", null);
         }
     }
-
-
+    
+    
     public Mob makeMob(String [] parts)
     {
         assert(parts.length == 8);
@@ -209,13 +956,13 @@ public class Room
         int x = Integer.parseInt(parts[5]);
         int y = Integer.parseInt(parts[6]);
         float scale = Float.parseFloat(parts[7]);
-        String color = parts[8].trim();
+        Rgba color = Rgba.parse(parts[8]);
 
         return makeMob(layer, tile, frames, phases, x, y, scale, color, Mob.TYPE_PROP);
     }
     
     
-    public Mob makeMob(int layer, int tile, int frames, int phases, int x, int y, float scale, String color, int type)
+    public Mob makeMob(int layer, int tile, int frames, int phases, int x, int y, float scale, Rgba color, int type)
     {
         int id = getNextObjectId();
         
@@ -236,9 +983,9 @@ public class Room
     }
 
     
-    public List <Mob> makeMobGroup(String id, int minCount, int maxCount, int centerX, int centerY, int spacing)
+    public List <Mob> makeMobGroup(Creature creature, int minCount, int maxCount, int centerX, int centerY, int spacing)
     {
-        int count = minCount + (int)(Math.random() * (maxCount - minCount + 1));
+        int count = minCount + (int)(random.nextDouble() * (maxCount - minCount + 1));
         
         ArrayList <Mob> result = new ArrayList<Mob>(count);        
         for(int i=0; i<count; i++)
@@ -250,8 +997,8 @@ public class Room
             // 10 tries will be made to find a clear spot
             do
             {
-                x = centerX + (int)(spacing * (Math.random() * 10 - 5));
-                y = centerY + (int)((spacing / 2) * (Math.random() * 10 - 5));
+                x = centerX + (int)(spacing * (random.nextDouble() * 10 - 5));
+                y = centerY + (int)((spacing / 2) * (random.nextDouble() * 10 - 5));
 
                 ok = true;
                 for(Mob mob : result)
@@ -266,17 +1013,23 @@ public class Room
                 tries ++;
             } while(!ok && tries < 10);
                     
-            Creature creature = CreatureCatalog.get(id);
             Mob mob = makeMob(3, creature.tile, creature.frames, creature.phases, 
                               x, y, creature.scale, creature.color, Mob.TYPE_CREATURE);
-            mob.creature = creature.create();
-            mob.nextAiTime = System.currentTimeMillis() + (int)(Math.random() * 10000);
+            mob.creature = creature;
+            mob.creatureState = creature.create(random);
+            mob.nextAiTime = System.currentTimeMillis() + (int)(random.nextDouble() * 10000);
+            nextAiTime = Math.min(nextAiTime, mob.nextAiTime);
             
             result.add(mob);
         }
         
         CreatureGroup creatureGroup = new CreatureGroup(result, centerX, centerY);
         groups.add(creatureGroup);
+        
+        for(int i=0; i<result.size(); i++)
+        {
+            mobGroups.put(result.get(i).id, creatureGroup);
+        }
 
         return result;
     }
@@ -284,71 +1037,183 @@ public class Room
     /*
      * Todo: Move this to a better place someday?
      */
-    synchronized public void aiCall()
+    public void aiCall()
     {
         long time = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
         
-        for(CreatureGroup group : groups)
+        for(int g=0; g<groups.size(); g++)
         {
-            for(Mob mob : group.creatures)
+            CreatureGroup group = groups.get(g);
+            int level = findAiLevel(group);
+            
+            if(level != group.aiLevel)
+            {
+                if(group.aiLevel == AI_IDLE)
+                {
+                    // a player came close, wake up the group
+                    for(int i=0; i<group.creatures.size(); i++)
+                    {
+                        Mob mob = group.creatures.get(i);
+                        mob.nextAiTime = Math.min(mob.nextAiTime, time + (int)(random.nextDouble() * 1000));
+                    }
+                }
+                group.aiLevel = level;
+            }
+            
+            for(int i=0; i<group.creatures.size(); i++)
             {
+                Mob mob = group.creatures.get(i);
+                
                 if(mob.nextAiTime < time)
                 {
-                    // fire at a player?
-                    if(Math.random() < 0.25)
+                    if(level == AI_IDLE)
                     {
-                        ArrayList<Mob> moblist = new ArrayList<Mob>  (mobs.values());
-                        // find a player
-                        for(Mob target : moblist)
-                        {
-                            if(target.type != Mob.TYPE_PROJECTILE && target.type == Mob.TYPE_PLAYER)
-                            {
-                                Spell spell = SpellCatalog.get(mob.creature.spellId);
-                                if(spell != null)
-                                {
-                                    commandWorker.fireProjectile(this, mob, 3, target.x, target.y, spell);
-                                }
-                            }
-                        }
-                        mob.nextAiTime = time + 1000 + (int)(Math.random() * 1000);
+                        // nobody around to see it
+                        mob.nextAiTime = time + AI_IDLE_TIME;
+                        aiSkipped ++;
                     }
-                    else if(mob.creature.pattern != null)
+                    else
                     {
-                        // move
-                        int x, y, len;
-                        int count = 0;
+                        think(mob, group, time, level);
+                    }
+                }
+                
+                next = Math.min(next, mob.nextAiTime);
+            }
+        }
+        
+        nextAiTime = next;
+    }
+    
+    
+    private int findAiLevel(CreatureGroup group)
+    {
+        Mob player = findNearestPlayer(group.cx, group.cy, AI_FAR_RANGE);
+        
+        if(player == null)
+        {
+            return AI_IDLE;
+        }
+        
+        int d = distance2(player, group.cx, group.cy);
+        return d <= AI_NEAR_RANGE * AI_NEAR_RANGE ? AI_FULL : AI_REDUCED;
+    }
+    
+    
+    private void think(Mob mob, CreatureGroup group, long time, int level)
+    {
+        locate(mob);
+        
+        // groups which are farther away think less often
+        int slowdown = 1;
+        
+        if(level == AI_FULL)
+        {
+            aiFull ++;
+        }
+        else
+        {
+            aiReduced ++;
+            slowdown = AI_REDUCED_FACTOR;
+        }
+        
+        // fire at a player? Only players close to the group can be hit
+        if(level == AI_FULL && random.nextDouble() < 0.25)
+        {
+            Mob target = findNearestPlayer(mob.x, mob.y, AI_FIRE_RANGE);
+            if(target != null)
+            {
+                Spell spell = mob.creature.spell;
+                if(spell != null)
+                {
+                    commandWorker.fireProjectile(this, mob, 3, target.x, target.y, spell);
+                }
+            }
+            mob.nextAiTime = time + 1000 + (int)(random.nextDouble() * 1000);
+        }
+        else if(mob.creature.pattern != null)
+        {
+            // move
+            int x, y, len;
+            int count = 0;
 
-                        do
-                        {
-                            x = mob.x + 100 - (int)(Math.random() * 200);
-                            y = mob.y + 100 - (int)(Math.random() * 200);
+            do
+            {
+                x = mob.x + 100 - (int)(random.nextDouble() * 200);
+                y = mob.y + 100 - (int)(random.nextDouble() * 200);
 
-                            int dx = (x - group.cx);
-                            int dy = (y - group.cy);
+                int dx = (x - group.cx);
+                int dy = (y - group.cy);
 
-                            len = dx * dx + (dy * dy) * 4;
-                            count ++;
+                len = dx * dx + (dy * dy) * 4;
+                count ++;
 
-                            // System.err.println("len=" + len);
-                        } while(len > 100 * 100 && count < 5);
+                // System.err.println("len=" + len);
+            } while(len > 100 * 100 && count < 5);
 
-                        if(count >= 5)
-                        {
-                            x = group.cx + 50 - (int)(Math.random() * 100);
-                            y = group.cy + 50 - (int)(Math.random() * 100);
-                        }
+            if(count >= 5)
+            {
+                x = group.cx + 50 - (int)(random.nextDouble() * 100);
+                y = group.cy + 50 - (int)(random.nextDouble() * 100);
+            }
 
-                        // System.err.println("id=" + creature.id + "moves to " + x + ", " + y);
-                        commandWorker.doMove(null, this, mob.id, 3, x, y, 
-                                             mob.creature.speed, mob.creature.pattern);
+            // System.err.println("id=" + creature.id + "moves to " + x + ", " + y);
+            commandWorker.doMove(null, this, mob.id, 3, x, y, 
+                                 mob.creature.speed, mob.creature.pattern);
 
-                        mob.nextAiTime = time + 3000 + (int)(Math.random() * 2000);
-                    }
-                }
-            }
+            mob.nextAiTime = time + (3000 + (int)(random.nextDouble() * 2000)) * slowdown;
+        }
+        else
+        {
+            mob.nextAiTime = time + AI_RETRY_TIME * slowdown;
+        }
+    }
+    
+    
+    /**
+     * @return AI statistics of this room, for monitoring
+     */
+    public String getAiStats()
+    {
+        return "full=" + aiFull + " reduced=" + aiReduced + " skipped=" + aiSkipped;
+    }
+    
+    /**
+     * Send enter and leave notifications to the clients of this room
+     * for the mobs and items that crossed their view boundaries.
+     */
+    void updateInterest()
+    {
+        if(commandWorker != null)
+        {
+            commandWorker.updateInterest(this);
+        }
+    }
+    
+    
+    /**
+     * Send the state changes of this tick to the clients which use 
+     * delta synchronisation.
+     */
+    void sendDeltas()
+    {
+        if(commandWorker != null)
+        {
+            commandWorker.sendDeltas(this);
         }
     }
     
+    
+    /**
+     * @return The items which lie on the map in this room.
+     */
+    public IntMap <Item> getItems()
+    {
+        return items;
+    }
+    
+    
     public void setCommandWorker(CommandWorker commandWorker) 
     {
         this.commandWorker = commandWorker;
@@ -374,6 +1239,19 @@ public class Room
     }
 
     
+    /**
+     * @return The transitions from this room to other rooms.
+     */
+    public List <Transition> getTransitions()
+    {
+        if(transitionsGeneration != Catalogs.getGeneration())
+        {
+            resolveTransitions();
+        }
+        return transitions;
+    }
+    
+    
     public void populateRoom(Server server, String roomname)
     {
         List<Population> populations = PopulationsCatalog.get(roomname);
@@ -382,7 +1260,7 @@ public class Room
             for(Population population : populations)
             {
                 List <Mob> mobs = 
-                        makeMobGroup(population.creatureId,
+                        makeMobGroup(population.creature,
                                      population.minCount, population.maxCount,
                                      population.x, population.y, population.spacing);
                 commandWorker.addMobGroup(server, this, mobs, 3);    
@@ -390,108 +1268,314 @@ public class Room
         }
     }
     
+    public int getPlayerCount()
+    {
+        return players.size();
+    }
+    
+    
     /**
-     * Result is indexed by distance square 
+     * Find the player avatar closest to the given position.
+     * 
+     * @param x X position on map
+     * @param y Y position on map
+     * @param limit Maximum distance to search
+     * @return The nearest player mob or null if no player is in range
      */
-    SortedMap <Integer, Mob> findMobsNear(int x, int y, int limit) 
+    public Mob findNearestPlayer(int x, int y, int limit)
     {
-        TreeMap <Integer, Mob> result = new TreeMap<Integer, Mob>();
+        Mob result = null;
         int dmax = limit * limit;
         
-        for(Mob mob : mobs.values())
+        for(int i=0; i<players.size(); i++)
         {
-            int dx = mob.x - x;
-            int dy = mob.y - y;
+            Mob player = players.get(i);
+            int d = distance2(player, x, y);
             
-            int d = dx * dx + dy * dy; 
+            if(d <= dmax)
+            {
+                result = player;
+                dmax = d;
+            }
+        }
+        
+        return result;
+    }
+    
+    
+    /**
+     * Find up to k player avatars near the given position. The result
+     * list is cleared first and then filled in order of ascending distance.
+     * 
+     * @param x X position on map
+     * @param y Y position on map
+     * @param limit Maximum distance to search
+     * @param k Maximum number of players to return
+     * @param result The list to fill
+     * @return The result list
+     */
+    public List <Mob> findNearestPlayers(int x, int y, int limit, int k, List <Mob> result)
+    {
+        result.clear();
+        int dmax = limit * limit;
+        
+        for(int i=0; i<players.size(); i++)
+        {
+            Mob player = players.get(i);
+            int d = distance2(player, x, y);
             
             if(d <= dmax)
             {
-                result.put(d, mob);
+                // insertion sort, k is expected to be small
+                int pos = result.size();
+                while(pos > 0 && distance2(result.get(pos-1), x, y) > d)
+                {
+                    pos --;
+                }
+                
+                if(pos < k)
+                {
+                    result.add(pos, player);
+                    if(result.size() > k)
+                    {
+                        result.remove(k);
+                    }
+                }
             }
         }
         
         return result;
     }
+    
+    
+    /**
+     * @return The squared distance of the mob to the position, after 
+     * bringing the mob position up to date
+     */
+    private int distance2(Mob mob, int x, int y)
+    {
+        locate(mob);
+        
+        int dx = mob.x - x;
+        int dy = mob.y - y;
+        return dx * dx + dy * dy;
+    }
+    
+    
+    /**
+     * Find the mob nearest to the given position, without allocating.
+     * 
+     * @return The nearest mob within the limit, or null if there is none
+     */
+    Mob findNearestMob(int x, int y, int limit) 
+    {
+        Mob nearest = null;
+        int best = limit * limit;
+        
+        for(int i=0; i<mobs.capacity(); i++)
+        {
+            Mob mob = mobs.valueAt(i);
+            if(mob == null)
+            {
+                continue;
+            }
+            
+            int d = distance2(mob, x, y);
+            
+            if(d <= best)
+            {
+                nearest = mob;
+                best = d;
+            }
+        }
+        
+        return nearest;
+    }
 
     
     /**
-     * Result is indexed by distance square 
+     * Find all creatures near the given position, in no particular order.
+     * Player avatars and props are left out. The result list is cleared
+     * first.
+     * 
+     * @return The result list
      */
-    SortedMap <Integer, Item> findItemsNear(int x, int y, int limit) 
+    List <Mob> findCreaturesNear(int x, int y, int limit, List <Mob> result) 
     {
-        TreeMap <Integer, Item> result = new TreeMap<Integer, Item>();
+        result.clear();
         int dmax = limit * limit;
         
-        for(Item item : items)
+        for(int i=0; i<mobs.capacity(); i++)
+        {
+            Mob mob = mobs.valueAt(i);
+            if(mob == null || mob.creature == null)
+            {
+                continue;
+            }
+            
+            if(distance2(mob, x, y) <= dmax)
+            {
+                result.add(mob);
+            }
+        }
+        
+        return result;
+    }
+
+    
+    /**
+     * Find the map item nearest to the given position, without allocating.
+     * 
+     * @return The nearest item within the limit, or null if there is none
+     */
+    Item findNearestItem(int x, int y, int limit)
+    {
+        Item nearest = null;
+        int best = limit * limit;
+        
+        for(int i=0; i<items.capacity(); i++)
         {
+            Item item = items.valueAt(i);
+            if(item == null)
+            {
+                continue;
+            }
+            
             int dx = item.position.x - x;
             int dy = item.position.y - y;
-            
             int d = dx * dx + dy * dy; 
             
-            if(d <= dmax)
+            if(d <= best)
             {
-                result.put(d, item);
+                nearest = item;
+                best = d;
             }
         }
         
-        return result;
+        return nearest;
     }
     
-    synchronized void handleHit(Mob projectile, Mob target) 
+    void handleHit(Mob projectile, Mob target) 
     {
         Spell spell = projectile.spell;
-        Creature creature = target.creature;
 
         // todo - environment hits?
-        if(spell != null && creature != null)
+        if(spell != null && target.creature != null)
         {
-            int damage = Damage.calculate(creature, spell);
-
-            System.err.println("Room: " + creature.displayName + " was hit by " + spell.displayName + " for " + damage + " damage.");
+            int damage = applyDamage(spell, target);
 
+            System.err.println("Room: " + target.creature.displayName + " was hit by " + spell.displayName + " for " + damage + " damage.");
 
-            creature.actualLife -= damage;
-
-            if(creature.actualLife < 0)
+            if(target.creatureState.actualLife < 0)
             {
                 commandWorker.kill(target, this);
                 handleDrops(target);
+                sendDrops();
+            }
+        }
+    }
+    
+    
+    /**
+     * Hit all creatures within the radius of an area spell. The damage is
+     * resolved for all of them first, then deaths and drops are handled
+     * in one pass.
+     * 
+     * @param projectile The projectile which carries the spell
+     * @param x X position of the impact
+     * @param y Y position of the impact
+     */
+    void handleAreaHit(Mob projectile, int x, int y) 
+    {
+        Spell spell = projectile.spell;
+        
+        findCreaturesNear(x, y, spell.radius, hitMobs);
+        
+        for(int i=0; i<hitMobs.size(); i++)
+        {
+            Mob target = hitMobs.get(i);
+            applyDamage(spell, target);
+            
+            if(target.creatureState.actualLife < 0)
+            {
+                deadMobs.add(target);
             }
         }
+        
+        for(int i=0; i<deadMobs.size(); i++)
+        {
+            Mob target = deadMobs.get(i);
+            commandWorker.kill(target, this);
+            handleDrops(target);
+        }
+        
+        // all the loot goes out in one message per client
+        sendDrops();
+        
+        System.err.println("Room: " + spell.displayName + " hit " + hitMobs.size() + " creatures, " + deadMobs.size() + " died.");
+        
+        hitMobs.clear();
+        deadMobs.clear();
+    }
+    
+    
+    /**
+     * @return The damage done to the target
+     */
+    private int applyDamage(Spell spell, Mob target) 
+    {
+        int damage = Damage.calculate(target.creature, spell, random);
+        target.creatureState.actualLife -= damage;
+        return damage;
     }
 
+    /**
+     * Roll the loot of a dead creature and put it onto the map. The new
+     * items are collected until sendDrops() is called.
+     */
     private void handleDrops(Mob target) 
     {
-        String [] parts = target.creature.treasureClasses.split(" ");
-        for(String tc : parts)
+        TreasureClass [] treasures = target.creature.treasure;
+        for(int t=0; t<treasures.length; t++)
         {
-            TreasureClass treasure = TreasureClassCatalog.get(tc);
-            for(int i=0; i<treasure.chances.size(); i++)
+            TreasureClass treasure = treasures[t];
+            long mask = treasure.roll(random);
+            
+            for(int i=0; mask != 0; i++, mask >>>= 1)
             {
-                if(Math.random() < treasure.chances.get(i))
+                if((mask & 1) != 0)
                 {
-                    String itemId = treasure.items.get(i);
-                    Item item = ItemBuilder.create(itemId);
+                    Item item = ItemBuilder.create(treasure.items[i], random);
                     item.mobId = getNextObjectId();
-                    item.position.x = target.x + (int)(Math.random() * 40 - 20);
-                    item.position.y = target.y + (int)(Math.random() * 20 - 10);
+                    item.position.x = target.x + (int)(random.nextDouble() * 40 - 20);
+                    item.position.y = target.y + (int)(random.nextDouble() * 20 - 10);
                     item.where = Item.ON_MAP;
 
-                    items.add(item);
-                    commandWorker.dropItem(this, item);
+                    items.put(item.mobId, item);
+                    drops.add(item);
+                    noteChange();
                 }
             }
         }
     }
+    
+    
+    private void sendDrops() 
+    {
+        if(!drops.isEmpty())
+        {
+            commandWorker.dropItems(this, drops);
+            drops.clear();
+        }
+    }
 
     public void handlePickup(Client client, Item item)
     {
         Point pos = client.findSuitableLocation(item);
         if(pos != null)
         {
-            items.remove(item);
+            items.remove(item.mobId);
+            noteChange();
 
             int layer = 3; // are items always layer 3?
             commandWorker.removeMob(item.mobId, this, layer);
@@ -520,7 +1604,8 @@ public class Room
         
         Client.Stat stat = client.stats[statIndex];
         stat.value += amount;
-        items.remove(item);
+        items.remove(item.mobId);
+        noteChange();
         
         int layer = 3; // are items always layer 3?
         commandWorker.removeMob(item.mobId, this, layer);
@@ -0,0 +1,68 @@
+package tinyplaces.server.isomap.actions;
+
+import java.util.ArrayList;
+import tinyplaces.server.data.Spell;
+import tinyplaces.server.isomap.Client;
+import tinyplaces.server.isomap.Mob;
+
+/**
+ * Recycles finished actions, so a steady stream of moves and spell casts
+ * does not create garbage. Like the room it belongs to, a pool must only
+ * be used by the owner thread of the room.
+ */
+public class ActionPool 
+{
+    private final ArrayList<Move> moves = new ArrayList<Move>(64);
+    private final ArrayList<SpellCast> spellCasts = new ArrayList<SpellCast>(64);
+    
+    
+    public Move obtainMove(Client client, Mob mob, int layer, int x, int y, int speed, String pattern)
+    {
+        int n = moves.size();
+        
+        if(n == 0)
+        {
+            return new Move(client, mob, layer, x, y, speed, pattern);
+        }
+        
+        Move move = moves.remove(n - 1);
+        move.init(client, mob, layer, x, y, speed, pattern);
+        return move;
+    }
+    
+    
+    public SpellCast obtainSpellCast(Mob mob, Spell spell, Mob projectile, int layer, int dx, int dy)
+    {
+        int n = spellCasts.size();
+        
+        if(n == 0)
+        {
+            return new SpellCast(mob, spell, projectile, layer, dx, dy);
+        }
+        
+        SpellCast spellCast = spellCasts.remove(n - 1);
+        spellCast.init(mob, spell, projectile, layer, dx, dy);
+        return spellCast;
+    }
+    
+    
+    /**
+     * Give a finished action back to the pool. The caller must not use
+     * the action anymore afterwards.
+     */
+    public void release(Action action)
+    {
+        if(action instanceof Move)
+        {
+            Move move = (Move)action;
+            move.init(null, null, 0, 0, 0, 0, null);
+            moves.add(move);
+        }
+        else if(action instanceof SpellCast)
+        {
+            SpellCast spellCast = (SpellCast)action;
+            spellCast.init(null, null, null, 0, 0, 0);
+            spellCasts.add(spellCast);
+        }
+    }
+}
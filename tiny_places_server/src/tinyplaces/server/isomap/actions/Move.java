@@ -2,6 +2,7 @@ package tinyplaces.server.isomap.actions;
 
 import tinyplaces.server.ServerDataEvent;
 import tinyplaces.server.isomap.Client;
+import tinyplaces.server.isomap.MotionTable;
 import tinyplaces.server.isomap.Mob;
 import tinyplaces.server.isomap.Room;
 
@@ -12,19 +13,17 @@ import tinyplaces.server.isomap.Room;
  */
 public class Move implements Action
 {
-    public final Client client;
-    public final Mob mob;
-    public final int layer;
-    public final int x;
-    public final int y;
-    public final int speed;
+    // not final, moves are recycled by the ActionPool
+    public Client client;
+    public Mob mob;
+    public int layer;
+    public int x;
+    public int y;
+    public int speed;
+    public String pattern; // movement pattern, only used by the clients
+    private boolean started;
     private boolean done;
-    private double xp;
-    private double yp;
     
-    // debug only
-    private int elapsedTime;
-
     @Override
     public Mob getMob()
     {
@@ -32,7 +31,13 @@ public class Move implements Action
     }
 
 
-    public Move(Client client, Mob mob, int layer, int x, int y, int speed)
+    public Move(Client client, Mob mob, int layer, int x, int y, int speed, String pattern)
+    {
+        init(client, mob, layer, x, y, speed, pattern);
+    }
+
+    
+    final void init(Client client, Mob mob, int layer, int x, int y, int speed, String pattern)
     {
         this.client = client;
         this.mob = mob;
@@ -40,8 +45,8 @@ public class Move implements Action
         this.x = x;
         this.y = y;
         this.speed = speed;
-        this.xp = mob.x;
-        this.yp = mob.y;
+        this.pattern = pattern;
+        started = false;
         done = false;
     }
 
@@ -53,51 +58,48 @@ public class Move implements Action
     }
     
     
+    /**
+     * @return true once the move was handed to the rooms motion table.
+     */
+    public boolean isStarted()
+    {
+        return started;
+    }
+    
+    
     @Override
     public void process(Room room, int dt)
     {
-        elapsedTime += dt;
-        
-        double dx = x - xp;
-        double dy = y - yp;
-
-        double len = Math.sqrt(dx * dx + dy * dy);
-  
-        // print("dx=" .. dx .. " dy=" .. dy .. " len="..len)
-  
-        double steplen = dt * speed * 0.001; // dt is milliseconds
-  
-        if(len > steplen)
+        if(!started)
         {
-            double nx = dx/len * steplen;
-            double ny = dy/len * steplen;
-            xp += nx;
-            yp += ny;
+            // From here on the rooms motion table drives the mob, and
+            // tells by arrive() when the mob reached the target
+            MotionTable motion = room.getMotionTable();
+            Move replaced = motion.start(this, mob, x, y, speed);
+            started = true;
             
-            mob.x = (int)(xp + 0.5);
-            mob.y = (int)(yp + 0.5);
-
-            /*
-            if(mob.id == 47)
+            if(replaced != null)
             {
-                System.err.println("mob.x=" + mob.x + " mob.y=" + mob.y);
+                // a former move of this mob is cancelled, it won't arrive
+                room.getActionPool().release(replaced);
             }
-            */
         }
-        else
-        {    
-            // eliminate rounding errors
-            mob.x = x;
-            mob.y = y;
-            done = true;
+    }
     
-            // System.err.println("Move done! id=" + mob.id + " time=" + elapsedTime/1000.0);
     
-            if(mob.type == Mob.TYPE_PROJECTILE)
-            {
-                // System.err.println("Removing expired projectile with id=" + mob.id);
-                room.removeMob(layer, mob.id);
-            }
+    /**
+     * Called by the map worker once the mob reached the target.
+     */
+    public void arrive(Room room)
+    {
+        done = true;
+
+        // System.err.println("Move done! id=" + mob.id);
+
+        if(mob.type == Mob.TYPE_PROJECTILE)
+        {
+            // System.err.println("Removing expired projectile with id=" + mob.id);
+            room.removeMob(layer, mob.id);
         }
     }
 }
@@ -12,16 +12,21 @@ import tinyplaces.server.isomap.Room;
  */
 public class SpellCast implements Action 
 {
-    private final Mob mob;
-    private final Spell spell;
-    private final Mob projectile;
+    private Mob mob;
+    private Spell spell;
+    private Mob projectile;
     private int age;
-    private final int dx;
-    private final int dy;
-    private final int layer;    
+    private int dx;
+    private int dy;
+    private int layer;    
     private boolean done;
     
     public SpellCast(Mob mob, Spell spell, Mob projectile, int layer, int dx, int dy)
+    {
+        init(mob, spell, projectile, layer, dx, dy);
+    }
+    
+    final void init(Mob mob, Spell spell, Mob projectile, int layer, int dx, int dy)
     {
         this.mob = mob;
         this.spell = spell;
@@ -40,11 +45,12 @@ public class SpellCast implements Action
         
         if(!done && age > spell.castTime)
         {
+            room.locate(mob);
             projectile.x = mob.x;
             projectile.y = mob.y;
             projectile.spell = spell;
 
-            Move move = new Move(null, projectile, layer, dx, dy, spell.speed);
+            Move move = room.getActionPool().obtainMove(null, projectile, layer, dx, dy, spell.speed, null);
             room.addAction(move);
             
             done = true;
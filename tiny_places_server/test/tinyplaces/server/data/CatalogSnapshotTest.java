@@ -0,0 +1,119 @@
+package tinyplaces.server.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Writes the shipped catalogs to a snapshot, reads them back and compares
+ * the entries. A snapshot of other source files must not be used.
+ *
+ * Run with:
+ * <pre>
+ *   java -cp classes:test-classes tinyplaces.server.data.CatalogSnapshotTest
+ * </pre>
+ */
+public class CatalogSnapshotTest
+{
+    public static void main(String [] args) throws Exception
+    {
+        Catalogs.init(CatalogSnapshotTest.class);
+        CatalogSet loaded = Catalogs.current();
+
+        File file = File.createTempFile("catalogs", ".snapshot");
+        file.deleteOnExit();
+
+        long [] hashes = {1, 2, 3, 4, 5, 6};
+        CatalogSnapshot.write(file, hashes, loaded);
+
+        CatalogSet read = CatalogSnapshot.read(file, hashes, 7);
+        check(read != null, "The snapshot was not read");
+        check(read.generation == 7, "Wrong generation " + read.generation);
+
+        for(BaseItem item : loaded.items.values())
+        {
+            BaseItem copy = read.items.get(item.id);
+            check(copy != null, "Item " + item.id + " is missing");
+            check(item.displayName.equals(copy.displayName) &&
+                  item.iclass.equals(copy.iclass) &&
+                  item.tile == copy.tile &&
+                  item.shadowScale == copy.shadowScale &&
+                  item.width == copy.width && item.height == copy.height &&
+                  item.color == copy.color &&
+                  item.canDrop == copy.canDrop &&
+                  item.physicalDamageMax == copy.physicalDamageMax &&
+                  item.description.equals(copy.description),
+                  "Item " + item.id + " differs");
+        }
+
+        for(Spell spell : loaded.spells.values())
+        {
+            Spell copy = read.spells.get(spell.id);
+            check(copy != null, "Spell " + spell.id + " is missing");
+            check(Arrays.equals(spell.min, copy.min) &&
+                  Arrays.equals(spell.max, copy.max) &&
+                  spell.castTime == copy.castTime &&
+                  spell.radius == copy.radius,
+                  "Spell " + spell.id + " differs");
+        }
+
+        for(TreasureClass treasureClass : loaded.treasureClasses.values())
+        {
+            TreasureClass copy = read.treasureClasses.get(treasureClass.id);
+            check(copy != null, "Treasure class " + treasureClass.id + " is missing");
+            check(Arrays.equals(treasureClass.chances, copy.chances) &&
+                  treasureClass.items.length == copy.items.length,
+                  "Treasure class " + treasureClass.id + " differs");
+
+            for(int i=0; i<copy.items.length; i++)
+            {
+                check(copy.items[i] == read.items.get(treasureClass.items[i].id),
+                      "Treasure class " + treasureClass.id + " refers to another item");
+            }
+        }
+
+        for(Creature creature : loaded.creatures.values())
+        {
+            Creature copy = read.creatures.get(creature.id);
+            check(copy != null, "Creature " + creature.id + " is missing");
+            check(creature.maxLife == copy.maxLife &&
+                  creature.getResistance(Damage.TYPE_FIRE) == copy.getResistance(Damage.TYPE_FIRE) &&
+                  (creature.pattern == null ? copy.pattern == null : creature.pattern.equals(copy.pattern)) &&
+                  creature.color == copy.color &&
+                  creature.treasure.length == copy.treasure.length,
+                  "Creature " + creature.id + " differs");
+            check(creature.spell == null ? copy.spell == null : copy.spell == read.spells.get(creature.spellId),
+                  "Creature " + creature.id + " has another spell");
+        }
+
+        check(loaded.transitions.keySet().equals(read.transitions.keySet()), "Transitions differ");
+        check(loaded.populations.keySet().equals(read.populations.keySet()), "Populations differ");
+
+        for(String map : loaded.populations.keySet())
+        {
+            ArrayList<Population> populations = read.populations.get(map);
+            check(populations.size() == loaded.populations.get(map).size(), "Populations of " + map + " differ");
+
+            for(Population population : populations)
+            {
+                check(population.creature == read.creatures.get(population.creatureId),
+                      "Population of " + map + " refers to another creature");
+            }
+        }
+
+        // an edited source file makes the snapshot useless
+        hashes[3] ++;
+        check(CatalogSnapshot.read(file, hashes, 8) == null, "A snapshot of other source files was used");
+
+        System.out.println(loaded.items.size() + " items, " + loaded.creatures.size() + " creatures read back from the snapshot");
+    }
+
+
+    private static void check(boolean condition, String message)
+    {
+        if(!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package tinyplaces.server.isomap;
+
+import java.lang.management.ManagementFactory;
+import tinyplaces.server.data.Rgba;
+import tinyplaces.server.data.Spell;
+import tinyplaces.server.isomap.actions.ActionPool;
+
+/**
+ * Checks that map worker ticks with a steady stream of moves and spell
+ * casts allocate nothing once the action pool is warmed up.
+ *
+ * The room has no command worker and no creature groups, so this covers
+ * the actions and the motion table only. updateInterest() and sendDeltas()
+ * return at once, the commands they send to clients are built as strings
+ * and do allocate.
+ *
+ * Needs a HotSpot JVM for the per-thread allocation counter. Run with:
+ * <pre>
+ *   java -cp classes:test-classes tinyplaces.server.isomap.ActionAllocationTest
+ * </pre>
+ */
+public class ActionAllocationTest
+{
+    private static final int WALKERS = 200;
+    private static final int CASTERS = 20;
+    private static final int TICK = 100;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+
+    public static void main(String [] args)
+    {
+        Room.setOwner(Thread.currentThread());
+
+        Room room = new Room("allocation_test", "none");
+        Room.addRoom("allocation_test", room);
+
+        Mob [] walkers = new Mob [WALKERS];
+        for(int i=0; i<WALKERS; i++)
+        {
+            walkers[i] = room.makeMob(3, 1, 1, 1, i * 10, 0, 1.0f, Rgba.WHITE, Mob.TYPE_CREATURE);
+        }
+
+        Mob [] casters = new Mob [CASTERS];
+        Mob [] projectiles = new Mob [CASTERS];
+        for(int i=0; i<CASTERS; i++)
+        {
+            casters[i] = room.makeMob(3, 1, 1, 1, i * 50, 5000, 1.0f, Rgba.WHITE, Mob.TYPE_CREATURE);
+            projectiles[i] = new Mob();
+            projectiles[i].id = room.getNextObjectId();
+            projectiles[i].type = Mob.TYPE_PROJECTILE;
+            projectiles[i].color = Rgba.WHITE;
+        }
+
+        Spell spell = new Spell();
+        spell.speed = 2000;
+        spell.castTime = 150;
+
+        MapWorker worker = new MapWorker();
+
+        // warm up the pool, the lists and the JIT
+        for(int t=0; t<20000; t++)
+        {
+            step(room, worker, walkers, casters, projectiles, spell, t);
+        }
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for(int t=0; t<10000; t++)
+        {
+            step(room, worker, walkers, casters, projectiles, spell, t);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        System.out.println("10000 ticks allocated " + allocated + " bytes, without client updates");
+
+        // the counter itself may report a few bytes of noise
+        if(allocated > 1024)
+        {
+            throw new AssertionError("Ticks allocate " + allocated + " bytes");
+        }
+    }
+
+
+    private static void step(Room room, MapWorker worker, Mob [] walkers, Mob [] casters,
+                             Mob [] projectiles, Spell spell, int t)
+    {
+        ActionPool pool = room.getActionPool();
+        MotionTable motion = room.getMotionTable();
+
+        // walkers go back and forth, some get a new target while under way
+        for(int i=0; i<walkers.length; i++)
+        {
+            Mob mob = walkers[i];
+            if(motion.getMove(mob) == null || (i + t) % 37 == 0)
+            {
+                int y = ((t + i) & 1) == 0 ? 0 : 300;
+                room.addAction(pool.obtainMove(null, mob, 3, mob.x, y, 1000, null));
+            }
+        }
+
+        // casters fire a projectile as soon as the last one is gone
+        for(int i=0; i<casters.length; i++)
+        {
+            Mob projectile = projectiles[i];
+            if(room.getMob(3, projectile.id) == null)
+            {
+                room.addMob(3, projectile);
+                room.addAction(pool.obtainSpellCast(casters[i], spell, projectile, 3, casters[i].x, 6000));
+            }
+        }
+
+        worker.tick(TICK);
+
+        // no delta clients here, so nobody else prunes the removal records
+        room.pruneDeltaLog(room.getChangeVersion());
+    }
+}
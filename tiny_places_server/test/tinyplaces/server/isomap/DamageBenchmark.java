@@ -0,0 +1,132 @@
+package tinyplaces.server.isomap;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import tinyplaces.server.data.Catalogs;
+import tinyplaces.server.data.Creature;
+import tinyplaces.server.data.CreatureCatalog;
+import tinyplaces.server.data.Damage;
+import tinyplaces.server.data.FastRandom;
+import tinyplaces.server.data.Spell;
+import tinyplaces.server.data.SpellCatalog;
+
+/**
+ * Measures how many hits per second Damage.calculate() and
+ * Room.handleAreaHit() resolve, with the shipped catalogs. Run with:
+ * <pre>
+ *   java -cp classes:test-classes tinyplaces.server.isomap.DamageBenchmark [rounds]
+ * </pre>
+ */
+public class DamageBenchmark
+{
+    private static final int CALLS = 20000000;
+    private static final int CASTS = 100000;
+    private static final int TARGETS = 200;
+    private static final int RADIUS = 500;
+
+    // keeps the JIT from dropping the damage calculations
+    private static long sink;
+
+
+    public static void main(String [] args) throws Exception
+    {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+
+        Catalogs.init(DamageBenchmark.class);
+
+        Creature creature = CreatureCatalog.get("dust_devil");
+        Spell spell = SpellCatalog.get("fireball");
+
+        for(int r=0; r<rounds; r++)
+        {
+            benchmarkCalculate(creature, spell);
+        }
+
+        // the benchmark spell only, the shipped spells are single target
+        spell.radius = RADIUS;
+
+        Room.setOwner(Thread.currentThread());
+        Room room = new Room("damage_benchmark", "none");
+        FastRandom random = new FastRandom(42);
+
+        Mob [] targets = new Mob [TARGETS];
+        for(int i=0; i<TARGETS; i++)
+        {
+            Mob mob = room.makeMob(3, 1, 1, 1, (i % 20) * 20, (i / 20) * 20, 1.0f, creature.color, Mob.TYPE_CREATURE);
+            mob.creature = creature;
+            mob.creatureState = creature.create(random);
+            targets[i] = mob;
+        }
+
+        Mob projectile = new Mob();
+        projectile.spell = spell;
+
+        // handleAreaHit() logs a line per cast, keep that out of the numbers
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        }));
+
+        try
+        {
+            for(int r=0; r<rounds; r++)
+            {
+                benchmarkAreaHit(room, projectile, targets);
+            }
+        }
+        finally
+        {
+            System.setErr(err);
+        }
+
+        System.out.println("(" + sink + ")");
+    }
+
+
+    private static void benchmarkCalculate(Creature creature, Spell spell)
+    {
+        FastRandom random = new FastRandom(42);
+        long total = 0;
+
+        long start = System.nanoTime();
+        for(int i=0; i<CALLS; i++)
+        {
+            total += Damage.calculate(creature, spell, random);
+        }
+        long time = System.nanoTime() - start;
+
+        sink += total;
+        System.out.println("Damage.calculate: " + report(time, CALLS));
+    }
+
+
+    private static void benchmarkAreaHit(Room room, Mob projectile, Mob [] targets)
+    {
+        long start = System.nanoTime();
+        for(int i=0; i<CASTS; i++)
+        {
+            // nobody may die, there is no command worker to announce it
+            for(int t=0; t<targets.length; t++)
+            {
+                targets[t].creatureState.actualLife = Integer.MAX_VALUE;
+            }
+
+            room.handleAreaHit(projectile, 200, 100);
+        }
+        long time = System.nanoTime() - start;
+
+        sink += targets[0].creatureState.actualLife;
+        System.out.println("handleAreaHit, " + targets.length + " targets: " +
+                           String.format("%.2f us/cast, ", time / 1000.0 / CASTS) + report(time, (long)CASTS * targets.length));
+    }
+
+
+    private static String report(long nanos, long hits)
+    {
+        return String.format("%.1f ns/hit, %.1f M hits/s", (double)nanos / hits, hits * 1000.0 / nanos);
+    }
+}
@@ -0,0 +1,93 @@
+package tinyplaces.server.isomap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import tinyplaces.server.data.Rgba;
+import tinyplaces.server.data.Spell;
+
+/**
+ * Posts a spell cast into a room whose map worker has been sleeping for a
+ * while. The cast must still wait its full cast time, the idle time before
+ * the command must not count.
+ *
+ * Run with:
+ * <pre>
+ *   java -cp classes:test-classes tinyplaces.server.isomap.IdleCastTest
+ * </pre>
+ */
+public class IdleCastTest
+{
+    private static final int CAST_TIME = 1000;
+    private static final int IDLE_TIME = 3000;
+
+    // written by the owner thread
+    private static volatile long firedAt;
+
+
+    public static void main(String [] args) throws InterruptedException
+    {
+        final Room room = new Room("idle_cast_test", "none");
+        Room.addRoom("idle_cast_test", room);
+
+        Thread worker = new Thread(new MapWorker(), "MapWorker");
+        worker.setDaemon(true);
+        worker.start();
+
+        final Mob caster = room.makeMob(3, 1, 1, 1, 0, 0, 1.0f, Rgba.WHITE, Mob.TYPE_CREATURE);
+        final Mob projectile = new Mob();
+        projectile.id = room.getNextObjectId();
+        projectile.type = Mob.TYPE_PROJECTILE;
+        projectile.color = Rgba.WHITE;
+
+        final Spell spell = new Spell();
+        spell.speed = 100;
+        spell.castTime = CAST_TIME;
+
+        // nothing happens in the room, so the worker goes idle
+        Thread.sleep(IDLE_TIME);
+
+        final long postedAt = System.currentTimeMillis();
+        room.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                room.addMob(3, projectile);
+                room.addAction(room.getActionPool().obtainSpellCast(caster, spell, projectile, 3, 0, 10000));
+            }
+        });
+
+        // the projectile starts to move once the spell is cast
+        while(firedAt == 0 && System.currentTimeMillis() - postedAt < CAST_TIME * 5)
+        {
+            final CountDownLatch checked = new CountDownLatch(1);
+            room.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(room.getMotionTable().getMove(projectile) != null)
+                    {
+                        firedAt = System.currentTimeMillis();
+                    }
+                    checked.countDown();
+                }
+            });
+            checked.await(1, TimeUnit.SECONDS);
+            Thread.sleep(10);
+        }
+
+        if(firedAt == 0)
+        {
+            throw new AssertionError("The spell was never cast");
+        }
+
+        long delay = firedAt - postedAt;
+        System.out.println("Spell cast " + delay + " ms after posting, cast time is " + CAST_TIME + " ms");
+
+        if(delay < CAST_TIME)
+        {
+            throw new AssertionError("The spell was cast " + delay + " ms after posting, before its cast time");
+        }
+    }
+}
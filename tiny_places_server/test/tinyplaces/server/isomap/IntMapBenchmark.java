@@ -0,0 +1,277 @@
+package tinyplaces.server.isomap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares IntMap with HashMap&lt;Integer, V&gt; for the room use cases:
+ * lookups, removals, churn (mobs coming and going) and iteration, and
+ * the memory per entry. Before measuring, a long random churn is checked
+ * against HashMap, so the backward shift deletion is covered with keys
+ * that collide a lot.
+ *
+ * Run with:
+ * <pre>
+ *   java -cp classes:test-classes tinyplaces.server.isomap.IntMapBenchmark
+ * </pre>
+ */
+public class IntMapBenchmark
+{
+    private static final int SIZE = 2000;
+    private static final int ROUNDS = 2000;
+
+    // keeps the JIT from dropping the measured loops
+    private static long sink;
+
+
+    public static void main(String [] args)
+    {
+        checkChurn();
+
+        Object value = new Object();
+        int [] ids = new int [SIZE];
+        for(int i=0; i<SIZE; i++)
+        {
+            // room object ids are handed out in sequence
+            ids[i] = i + 1;
+        }
+
+        IntMap <Object> intMap = new IntMap<Object>(SIZE);
+        HashMap <Integer, Object> hashMap = new HashMap<Integer, Object>(SIZE * 2);
+        for(int id : ids)
+        {
+            intMap.put(id, value);
+            hashMap.put(id, value);
+        }
+
+        for(int warmup=0; warmup<3; warmup++)
+        {
+            getIntMap(intMap, ids);
+            getHashMap(hashMap, ids);
+            churnIntMap(intMap, ids, value);
+            churnHashMap(hashMap, ids, value);
+            iterateIntMap(intMap);
+            iterateHashMap(hashMap);
+        }
+
+        long ops = (long)SIZE * ROUNDS;
+        report("get", getHashMap(hashMap, ids), getIntMap(intMap, ids), ops);
+        report("remove + put", churnHashMap(hashMap, ids, value), churnIntMap(intMap, ids, value), ops);
+        report("iteration per entry", iterateHashMap(hashMap), iterateIntMap(intMap), ops);
+
+        System.out.printf("retained memory per entry: HashMap %.1f bytes, IntMap %.1f bytes%n",
+                          memoryPerEntry(false), memoryPerEntry(true));
+        System.out.println("(checksum " + sink + ")");
+    }
+
+
+    /**
+     * Random put, remove and get on a small key range, so the probe
+     * chains get long and removals have to shift entries back.
+     */
+    private static void checkChurn()
+    {
+        Random random = new Random(32);
+        IntMap <Integer> map = new IntMap<Integer>(16);
+        HashMap <Integer, Integer> reference = new HashMap<Integer, Integer>();
+
+        for(int i=0; i<2000000; i++)
+        {
+            // multiples of 64 hash into few slots of small tables
+            int key = random.nextBoolean() ? random.nextInt(600) : random.nextInt(40) * 64;
+            int op = random.nextInt(10);
+
+            if(op < 4)
+            {
+                check(map.put(key, i), reference.put(key, i), "put", key);
+            }
+            else if(op < 8)
+            {
+                check(map.remove(key), reference.remove(key), "remove", key);
+            }
+            else
+            {
+                check(map.get(key), reference.get(key), "get", key);
+            }
+
+            if(map.size() != reference.size())
+            {
+                throw new AssertionError("Size " + map.size() + " instead of " + reference.size());
+            }
+        }
+
+        // every key is found by iteration too
+        int count = 0;
+        for(int i=0; i<map.capacity(); i++)
+        {
+            Integer v = map.valueAt(i);
+            if(v != null)
+            {
+                check(v, reference.get(map.keyAt(i)), "iteration", map.keyAt(i));
+                count ++;
+            }
+        }
+        if(count != reference.size())
+        {
+            throw new AssertionError("Iteration found " + count + " of " + reference.size() + " entries");
+        }
+
+        System.out.println("2M random operations match HashMap, " + count + " entries left");
+    }
+
+
+    private static void check(Integer actual, Integer expected, String op, int key)
+    {
+        if(actual == null ? expected != null : !actual.equals(expected))
+        {
+            throw new AssertionError(op + "(" + key + ") gave " + actual + " instead of " + expected);
+        }
+    }
+
+
+    private static long getIntMap(IntMap <Object> map, int [] ids)
+    {
+        long start = System.nanoTime();
+        for(int r=0; r<ROUNDS; r++)
+        {
+            for(int id : ids)
+            {
+                sink += map.get(id) != null ? 1 : 0;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    private static long getHashMap(HashMap <Integer, Object> map, int [] ids)
+    {
+        long start = System.nanoTime();
+        for(int r=0; r<ROUNDS; r++)
+        {
+            for(int id : ids)
+            {
+                sink += map.get(id) != null ? 1 : 0;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    private static long churnIntMap(IntMap <Object> map, int [] ids, Object value)
+    {
+        long start = System.nanoTime();
+        for(int r=0; r<ROUNDS; r++)
+        {
+            for(int id : ids)
+            {
+                map.remove(id);
+                map.put(id, value);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    private static long churnHashMap(HashMap <Integer, Object> map, int [] ids, Object value)
+    {
+        long start = System.nanoTime();
+        for(int r=0; r<ROUNDS; r++)
+        {
+            for(int id : ids)
+            {
+                map.remove(id);
+                map.put(id, value);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    private static long iterateIntMap(IntMap <Object> map)
+    {
+        long start = System.nanoTime();
+        for(int r=0; r<ROUNDS; r++)
+        {
+            for(int i=0; i<map.capacity(); i++)
+            {
+                if(map.valueAt(i) != null)
+                {
+                    sink += map.keyAt(i);
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    private static long iterateHashMap(HashMap <Integer, Object> map)
+    {
+        long start = System.nanoTime();
+        for(int r=0; r<ROUNDS; r++)
+        {
+            for(Map.Entry <Integer, Object> entry : map.entrySet())
+            {
+                sink += entry.getKey();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    private static void report(String name, long hashTime, long intTime, long ops)
+    {
+        System.out.printf("%s: HashMap %.1f ns, IntMap %.1f ns%n", name,
+                          hashTime / (double)ops, intTime / (double)ops);
+    }
+
+
+    /**
+     * Heap growth for 100 maps of SIZE entries, divided by the entries.
+     * The values are shared, so only the map structure is counted.
+     */
+    private static double memoryPerEntry(boolean intMaps)
+    {
+        Object value = new Object();
+        Object [] maps = new Object [100];
+
+        long before = usedMemory();
+        for(int m=0; m<maps.length; m++)
+        {
+            if(intMaps)
+            {
+                IntMap <Object> map = new IntMap<Object>();
+                for(int i=1; i<=SIZE; i++)
+                {
+                    map.put(i + m * SIZE, value);
+                }
+                maps[m] = map;
+            }
+            else
+            {
+                HashMap <Integer, Object> map = new HashMap<Integer, Object>();
+                for(int i=1; i<=SIZE; i++)
+                {
+                    // beyond the Integer cache, like real object ids
+                    map.put(i + m * SIZE + 1000, value);
+                }
+                maps[m] = map;
+            }
+        }
+        long after = usedMemory();
+
+        sink += maps.length;
+        return (after - before) / (double)(maps.length * SIZE);
+    }
+
+
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i=0; i<3; i++)
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,195 @@
+package tinyplaces.server.isomap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import tinyplaces.server.data.Rgba;
+
+/**
+ * Many threads post commands to one room while a map worker owns it.
+ * Checks that every command runs exactly once, on the owner thread, and
+ * that the commands of each poster run in the order they were posted.
+ *
+ * Run with:
+ * <pre>
+ *   java -cp classes:test-classes tinyplaces.server.isomap.RoomInboxStressTest
+ * </pre>
+ */
+public class RoomInboxStressTest
+{
+    private static final int POSTERS = 16;
+    private static final int COMMANDS = 50000;
+
+    // only touched by the owner thread
+    private static final int [] lastSeen = new int [POSTERS];
+    private static long executed;
+    private static int outOfOrder;
+    private static int wrongThread;
+
+    private static volatile Thread owner;
+
+
+    public static void main(String [] args) throws InterruptedException
+    {
+        final Room room = new Room("stress_test", "none");
+        Room.addRoom("stress_test", room);
+
+        Thread worker = new Thread(new MapWorker(), "MapWorker");
+        worker.setDaemon(true);
+        worker.start();
+
+        // wait until the worker took over the rooms
+        final CountDownLatch started = new CountDownLatch(1);
+        room.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                owner = Thread.currentThread();
+                started.countDown();
+            }
+        });
+        if(!started.await(10, TimeUnit.SECONDS))
+        {
+            throw new AssertionError("The map worker runs no commands");
+        }
+
+        for(int p=0; p<POSTERS; p++)
+        {
+            lastSeen[p] = -1;
+        }
+
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread [] posters = new Thread [POSTERS];
+
+        for(int p=0; p<POSTERS; p++)
+        {
+            final int poster = p;
+            posters[p] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        go.await();
+                    }
+                    catch(InterruptedException ex)
+                    {
+                        return;
+                    }
+
+                    for(int i=0; i<COMMANDS; i++)
+                    {
+                        room.execute(new Check(room, poster, i));
+                    }
+                }
+            }, "Poster " + p);
+            posters[p].start();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+
+        for(int p=0; p<POSTERS; p++)
+        {
+            posters[p].join();
+        }
+
+        // posted last, so it runs after all other commands
+        final CountDownLatch done = new CountDownLatch(1);
+        final long [] result = new long [4];
+        room.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                result[0] = executed;
+                result[1] = outOfOrder;
+                result[2] = wrongThread;
+                result[3] = room.getLayerMap(3).size();
+                done.countDown();
+            }
+        });
+
+        if(!done.await(60, TimeUnit.SECONDS))
+        {
+            throw new AssertionError("Commands are stuck in the inbox");
+        }
+
+        long time = System.nanoTime() - start;
+        long expected = (long)POSTERS * COMMANDS;
+
+        System.out.println(result[0] + " commands from " + POSTERS + " threads in " +
+                           (time / 1000000) + " ms");
+
+        if(result[0] != expected)
+        {
+            throw new AssertionError("Ran " + result[0] + " of " + expected + " commands");
+        }
+        if(result[1] != 0)
+        {
+            throw new AssertionError(result[1] + " commands ran out of order");
+        }
+        if(result[2] != 0)
+        {
+            throw new AssertionError(result[2] + " commands ran on another thread than the owner");
+        }
+        // every poster added a mob with each even and removed it with each odd command
+        if(result[3] != 0)
+        {
+            throw new AssertionError(result[3] + " mobs left in the room");
+        }
+    }
+
+
+    /**
+     * A command which checks its order, and changes the room like the
+     * real commands do.
+     */
+    private static class Check implements Runnable
+    {
+        private final Room room;
+        private final int poster;
+        private final int seq;
+
+
+        Check(Room room, int poster, int seq)
+        {
+            this.room = room;
+            this.poster = poster;
+            this.seq = seq;
+        }
+
+
+        @Override
+        public void run()
+        {
+            if(Thread.currentThread() != owner)
+            {
+                wrongThread ++;
+            }
+            if(lastSeen[poster] != seq - 1)
+            {
+                outOfOrder ++;
+            }
+            lastSeen[poster] = seq;
+            executed ++;
+
+            // mob ids per poster and pair of commands, so the odd command
+            // finds the mob of the even one
+            int id = 1000000 + poster * COMMANDS + (seq & ~1);
+            if((seq & 1) == 0)
+            {
+                Mob mob = new Mob();
+                mob.id = id;
+                mob.type = Mob.TYPE_CREATURE;
+                mob.color = Rgba.WHITE;
+                room.addMob(3, mob);
+            }
+            else if(room.removeMob(3, id) == null)
+            {
+                outOfOrder ++;
+            }
+        }
+    }
+}